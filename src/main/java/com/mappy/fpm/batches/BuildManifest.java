@@ -0,0 +1,193 @@
+package com.mappy.fpm.batches;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.mappy.fpm.batches.tomtom.ConversionSettings;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Throwables.propagate;
+import static com.google.common.io.Files.asByteSource;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.move;
+import static java.nio.file.Files.newBufferedReader;
+import static java.nio.file.Files.newBufferedWriter;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Optional.empty;
+import static java.util.Optional.of;
+
+/**
+ * Remembers, for each generated output, the hash of the inputs it was generated from.
+ * An output whose inputs did not change since the last run can be reused.
+ */
+@Slf4j
+public class BuildManifest {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    /**
+     * Version of the files generated from given inputs and settings, to increment when a change of fpm changes these files.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private final Content content;
+
+    private BuildManifest(File file, Content content) {
+        this.file = file;
+        this.content = content;
+    }
+
+    public static BuildManifest disabled() {
+        return new BuildManifest(null, null);
+    }
+
+    public static BuildManifest load(File file) {
+        if (!file.exists()) {
+            log.info("No manifest found at {}, everything will be generated", file);
+            return new BuildManifest(file, new Content(new ConcurrentHashMap<>(), new ConcurrentHashMap<>()));
+        }
+        try (Reader reader = newBufferedReader(file.toPath(), UTF_8)) {
+            Content content = GSON.fromJson(reader, Content.class);
+            log.info("Loaded manifest {} with {} output(s)", file, content.getOutputs().size());
+            return new BuildManifest(file, new Content(new ConcurrentHashMap<>(content.getFiles()), new ConcurrentHashMap<>(content.getOutputs())));
+        }
+        catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Hash of the content of the given files, of the settings which change the files converted from them and of the format version.
+     * The content hash of a file is recomputed only when its size or modification date changed.
+     */
+    public String hash(List<File> inputs, ConversionSettings settings) {
+        if (!isEnabled()) {
+            return "";
+        }
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putInt(FORMAT_VERSION)
+                .putBoolean(settings.isMetadata())
+                .putBoolean(settings.isSharedSink())
+                // Spill directories only tell where runs are written
+                .putLong(settings.getSortSettings().getMemoryBudget())
+                .putInt(settings.getSortSettings().getMaxFanIn());
+        for (File input : inputs) {
+            hasher.putString(input.getName(), UTF_8).putString(hash(input), UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Hash of the inputs recorded for the given keys, of the merge settings and of the format version, to be used by an output merged
+     * from the outputs of these keys.
+     */
+    public String combine(List<String> keys, int compressionLevel, boolean directMerge) {
+        if (!isEnabled()) {
+            return "";
+        }
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putInt(FORMAT_VERSION)
+                .putInt(compressionLevel)
+                .putBoolean(directMerge);
+        for (String key : keys) {
+            Output output = content.getOutputs().get(key);
+            hasher.putString(key, UTF_8).putString(output == null ? "" : output.getInputs(), UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Previous output of the given key when it was generated from the same inputs and it still exists, as well as its split files.
+     */
+    public Optional<Output> upToDate(String key, String inputs) {
+        if (!isEnabled()) {
+            return empty();
+        }
+        Output output = content.getOutputs().get(key);
+        if (output == null || !output.getInputs().equals(inputs) || output.getFile() != null && !new File(output.getFile()).exists()) {
+            return empty();
+        }
+        if (output.getSplitFiles() != null && !output.getSplitFiles().stream().allMatch(splitFile -> new File(splitFile).exists())) {
+            return empty();
+        }
+        return of(output);
+    }
+
+    public void record(String key, String inputs, String outputFile) {
+        record(key, inputs, outputFile, null);
+    }
+
+    /**
+     * @param splitFiles Files the output was split into, which have to exist as well for the output to be reused.
+     */
+    public void record(String key, String inputs, String outputFile, List<String> splitFiles) {
+        if (isEnabled()) {
+            content.getOutputs().put(key, new Output(inputs, outputFile, splitFiles));
+            save();
+        }
+    }
+
+    private String hash(File input) {
+        FileHash previous = content.getFiles().get(input.getPath());
+        if (previous != null && previous.getSize() == input.length() && previous.getLastModified() == input.lastModified()) {
+            return previous.getHash();
+        }
+        try {
+            FileHash fileHash = new FileHash(input.length(), input.lastModified(), asByteSource(input).hash(Hashing.murmur3_128()).toString());
+            content.getFiles().put(input.getPath(), fileHash);
+            return fileHash.getHash();
+        }
+        catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private synchronized void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try {
+            try (Writer writer = newBufferedWriter(tmp.toPath(), UTF_8)) {
+                GSON.toJson(content, writer);
+            }
+            move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    @Value
+    private static class Content {
+        private final Map<String, FileHash> files;
+        private final Map<String, Output> outputs;
+    }
+
+    @Value
+    private static class FileHash {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+    }
+
+    @Value
+    public static class Output {
+        private final String inputs;
+        private final String file;
+        private final List<String> splitFiles;
+    }
+}
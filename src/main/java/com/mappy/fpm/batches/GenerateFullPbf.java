@@ -1,20 +1,24 @@
 package com.mappy.fpm.batches;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.annotations.VisibleForTesting;
 import com.mappy.fpm.batches.merge.pbf.OsmMerger;
+import com.mappy.fpm.batches.tomtom.ConversionSettings;
 import com.mappy.fpm.batches.tomtom.Tomtom2Osm;
 import com.mappy.fpm.batches.tomtom.Tomtom2OsmModule;
+import com.mappy.fpm.batches.tomtom.TomtomFolder;
+import com.mappy.fpm.batches.utils.IdTrackers;
+import com.mappy.fpm.batches.utils.MetricsReporter;
+import com.mappy.fpm.batches.utils.SortSettings;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.concurrent.BasicThreadFactory;
-import org.apache.commons.lang3.concurrent.BasicThreadFactory.Builder;
-import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Deflater;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Splitter.on;
@@ -22,8 +26,13 @@ import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.inject.Guice.createInjector;
 import static com.mappy.fpm.batches.CountryWapper.ALL_COUNTRIES;
+import static com.mappy.fpm.batches.GenerationScheduler.*;
+import static java.lang.Boolean.getBoolean;
+import static java.lang.Integer.getInteger;
 import static java.lang.Integer.parseInt;
+import static java.lang.Long.getLong;
 import static java.lang.String.format;
+import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Stream.of;
@@ -31,6 +40,7 @@ import static java.util.stream.Stream.of;
 @Slf4j
 public class GenerateFullPbf {
     public static final String OSM_SUFFIX = ".osm.pbf";
+    private static final String MANIFEST_FILE = "manifest.json";
     private static final String TOWN_SUFFIX = "_2dbd.shp";
     private static final String COUNTRY_SUFFIX = "______________a0.shp";
     private static final String FERRY_SUFFIX = "___________fe.shp";
@@ -40,15 +50,33 @@ public class GenerateFullPbf {
     private final String inputDirectoryPath;
     private final String outputDirectoryPath;
     private final String outputFileName;
-    private final ExecutorService executorService;
+    private final ConversionSettings settings;
+    private final BuildManifest manifest;
+    private final GenerationScheduler scheduler;
+    private final int nbThreads;
+    private final boolean directMerge;
 
     public GenerateFullPbf(OsmMerger osmMerger, String inputDirectoryPath, String outputDirectoryPath, String outputFileName, int nbThreads) {
+        this(osmMerger, inputDirectoryPath, outputDirectoryPath, outputFileName, nbThreads, ConversionSettings.DEFAULT, false, Long.MAX_VALUE);
+    }
+
+    public GenerateFullPbf(OsmMerger osmMerger, String inputDirectoryPath, String outputDirectoryPath, String outputFileName, int nbThreads, ConversionSettings settings, boolean incremental, long memoryBudget) {
+        this(osmMerger, inputDirectoryPath, outputDirectoryPath, outputFileName, nbThreads, settings, incremental, memoryBudget, false);
+    }
+
+    /**
+     * @param directMerge Whether the final file is merged from the zone files of all countries at once, without writing country files.
+     */
+    public GenerateFullPbf(OsmMerger osmMerger, String inputDirectoryPath, String outputDirectoryPath, String outputFileName, int nbThreads, ConversionSettings settings, boolean incremental, long memoryBudget, boolean directMerge) {
         this.osmMerger = osmMerger;
+        this.settings = settings;
+        this.manifest = incremental ? BuildManifest.load(new File(outputDirectoryPath, MANIFEST_FILE)) : BuildManifest.disabled();
         this.inputDirectoryPath = inputDirectoryPath;
         this.outputDirectoryPath = outputDirectoryPath;
         this.outputFileName = outputFileName;
-        BasicThreadFactory threadFactory = new Builder().namingPattern("mappy-GenerateFullPbf-%d").daemon(false).build();
-        executorService = new ThreadPoolExecutor(nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        this.scheduler = new GenerationScheduler(nbThreads, memoryBudget);
+        this.nbThreads = nbThreads;
+        this.directMerge = directMerge;
     }
 
     public static void main(String[] args) {
@@ -60,27 +88,54 @@ public class GenerateFullPbf {
         String outputFileName = args[3];
         String threadNumber = args[4];
 
-        new GenerateFullPbf( //
-                new OsmMerger(), //
-                inputDirectoryPath, //
-                outputDirectoryPath, //
-                outputFileName, //
-                parseInt(threadNumber)).run(countries);
+        MetricRegistry registry = new MetricRegistry();
+        MetricsReporter reporter = MetricsReporter.start(registry, Optional.ofNullable(System.getProperty("com.mappy.fpm.metrics.csv")), getLong("com.mappy.fpm.metrics.period", 60));
+        try {
+            new GenerateFullPbf( //
+                    new OsmMerger(registry, getInteger("com.mappy.fpm.merge.compression", Deflater.DEFAULT_COMPRESSION)), //
+                    inputDirectoryPath, //
+                    outputDirectoryPath, //
+                    outputFileName, //
+                    parseInt(threadNumber), //
+                    new ConversionSettings( //
+                            getInteger("com.mappy.fpm.tomtom.shapefile.threads", 1), //
+                            getBoolean("com.mappy.fpm.serializer.offheap") ? IdTrackers.OFF_HEAP : IdTrackers.HEAP, //
+                            new SortSettings( //
+                                    getLong("com.mappy.fpm.sort.memory", SortSettings.DEFAULT.getMemoryBudget() >> 20) << 20, //
+                                    spillDirectories(), //
+                                    getInteger("com.mappy.fpm.sort.fanin", SortSettings.DEFAULT.getMaxFanIn()), //
+                                    registry), //
+                            !getBoolean("com.mappy.fpm.serializer.omitmetadata"), //
+                            getBoolean("com.mappy.fpm.tomtom.shared.sink")), //
+                    getBoolean("com.mappy.fpm.incremental"), //
+                    getLong("com.mappy.fpm.memory.budget", Runtime.getRuntime().maxMemory() / 4 * 3 >> 20) << 20, //
+                    getBoolean("com.mappy.fpm.merge.direct")).run(countries);
+        } finally {
+            reporter.stop();
+        }
     }
 
     public void run(List<String> countries) {
         log.info("Running with countries : {}", countries);
 
         try {
-            List<String> countryPbfFiles = countries.stream().map(this::generateCountry).collect(toList());
-            mergePbfFiles(countryPbfFiles, outputDirectoryPath + "/" + outputFileName, newArrayList());
+            // Zones of every country are queued before any starts, so that the largest start first.
+            // Each merge is queued as soon as its inputs are done.
+            await(scheduler.batch(() -> directMerge ? mergeZones(countries) : mergeCountries(countries)));
 
         } finally {
-            log.info("Shutting down service...");
-            executorService.shutdown();
+            scheduler.shutdown();
         }
     }
 
+    private static List<File> spillDirectories() {
+        String directories = System.getProperty("com.mappy.fpm.sort.directories");
+        if (directories == null) {
+            return SortSettings.DEFAULT.getSpillDirectories();
+        }
+        return on(",").trimResults().omitEmptyStrings().splitToList(directories).stream().map(File::new).collect(toList());
+    }
+
     @VisibleForTesting
     static List<String> checkAndValidCountries(String countryList) {
         List<String> countries = on(",").trimResults().splitToList(countryList).stream().filter(StringUtils::isNotBlank).collect(toList());
@@ -97,10 +152,57 @@ public class GenerateFullPbf {
         return countries;
     }
 
-    @NotNull
-    private String generateCountry(String country) {
+    private CompletableFuture<String> mergeCountries(List<String> countries) {
+        List<CompletableFuture<String>> countryPbfFiles = countries.stream().map(this::generateCountry).collect(toList());
+        return scheduler.submitAfter(countryPbfFiles, MERGE_PRIORITY, () -> {
+            List<String> countryFiles = countryPbfFiles.stream().map(CompletableFuture::join).collect(toList());
+            // Nothing else runs once countries are done, the final merge splits keys into a range per thread.
+            mergePbfFiles(countryFiles, countryFiles, outputDirectoryPath + "/" + outputFileName, nbThreads);
+            return outputFileName;
+        });
+    }
+
+    /**
+     * Merges the zone files of all countries in a single pass. Entities are the ones of merging the zones of each country,
+     * then the countries: the entity of the last zone is kept, with tags of the last zones first.
+     */
+    private CompletableFuture<String> mergeZones(List<String> countries) {
+        List<String> zoneKeys = newArrayList();
+        List<CompletableFuture<Optional<String>>> zonesFutures = newArrayList();
+        for (String country : countries) {
+            log.info("Generating country : {}", country);
+            List<String> zones = zones(country);
+            zones.forEach(zone -> zoneKeys.add(zoneKey(country, zone)));
+            zonesFutures.addAll(generateZones(country, zones));
+        }
+        return scheduler.submitAfter(zonesFutures, MERGE_PRIORITY, () -> {
+            mergePbfFiles(zoneKeys, presentFiles(zonesFutures), outputDirectoryPath + "/" + outputFileName, nbThreads);
+            return outputFileName;
+        });
+    }
+
+    private CompletableFuture<String> generateCountry(String country) {
         log.info("Generating country : {}", country);
 
+        List<String> zones = zones(country);
+        List<CompletableFuture<Optional<String>>> zonesFutures = generateZones(country, zones);
+
+        String countryFile = outputDirectoryPath + "/" + country + "/" + country + OSM_SUFFIX;
+        return scheduler.submitAfter(zonesFutures, MERGE_PRIORITY, () -> {
+            mergePbfFiles(zones.stream().map(zone -> zoneKey(country, zone)).collect(toList()), presentFiles(zonesFutures), countryFile, 1);
+            log.info("Done generating country : {}", country);
+            return countryFile;
+        });
+    }
+
+    /**
+     * Zone files are collected in submission order, whatever the order in which zones are done.
+     */
+    private static List<String> presentFiles(List<CompletableFuture<Optional<String>>> zonesFutures) {
+        return zonesFutures.stream().map(CompletableFuture::join).filter(Optional::isPresent).map(Optional::get).collect(toList());
+    }
+
+    private List<String> zones(String country) {
         File file = new File(inputDirectoryPath + "/" + country);
         if (!file.exists()) {
             String msg = format("No input file for country : %s.", country);
@@ -108,55 +210,66 @@ public class GenerateFullPbf {
             throw new IllegalArgumentException(msg);
         }
 
-        List<String> zonePbfFiles = newArrayList();
-        List<Future<?>> zonesFutures = newArrayList();
-
-        for (String zoneFileName : of(file.list()).filter(f -> f.endsWith(TOWN_SUFFIX) || f.endsWith(ROAD_SUFFIX) || f.endsWith(FERRY_SUFFIX) || f.endsWith(COUNTRY_SUFFIX)).collect(toList())) {
-
-            String zone = zoneFileName.replace(TOWN_SUFFIX, "").replace(ROAD_SUFFIX, "").replace(FERRY_SUFFIX, "").replace(COUNTRY_SUFFIX, "");
-
-            Tomtom2Osm instance = createInjector(new Tomtom2OsmModule(
-                    inputDirectoryPath + "/" + country + "/",
-                    outputDirectoryPath + "/" + country + "/pbfFiles",
-                    outputDirectoryPath + "/splitter",
-                    zone)
-            ).getInstance(Tomtom2Osm.class);
-
-            Future<?> zoneFuture = executorService.submit(() -> {
-                try {
-                    Optional<String> OSMZone = instance.run();
-                    OSMZone.ifPresent(zonePbfFiles::add);
-                } catch (IOException e) {
-                    log.info("Error when generating zone: {}", zone, e);
-                    propagate(e);
-                }
-            });
-            zonesFutures.add(zoneFuture);
+        return of(file.list())
+                .filter(f -> f.endsWith(TOWN_SUFFIX) || f.endsWith(ROAD_SUFFIX) || f.endsWith(FERRY_SUFFIX) || f.endsWith(COUNTRY_SUFFIX))
+                .map(zoneFileName -> zoneFileName.replace(TOWN_SUFFIX, "").replace(ROAD_SUFFIX, "").replace(FERRY_SUFFIX, "").replace(COUNTRY_SUFFIX, ""))
+                .distinct()
+                .sorted()
+                .collect(toList());
+    }
+
+    private List<CompletableFuture<Optional<String>>> generateZones(String country, List<String> zones) {
+        return zones.stream()
+                .map(zone -> {
+                    ZoneCost zoneCost = ZoneCost.estimate(new TomtomFolder(inputDirectoryPath + "/" + country + "/", zone).getZoneFiles());
+                    return scheduler.submit(ZONE_PRIORITY, zoneCost.getCost(), zoneCost.getMemory(), () -> generateZone(country, zone));
+                })
+                .collect(toList());
+    }
+
+    private Optional<String> generateZone(String country, String zone) {
+        String inputFolder = inputDirectoryPath + "/" + country + "/";
+        String key = zoneKey(country, zone);
+        String inputs = manifest.hash(new TomtomFolder(inputFolder, zone).getZoneFiles(), settings);
+        Optional<BuildManifest.Output> previous = manifest.upToDate(key, inputs);
+        if (previous.isPresent()) {
+            log.info("Inputs of zone {} did not change, reusing previous output", key);
+            return Optional.ofNullable(previous.get().getFile());
         }
 
-        String countryFile = outputDirectoryPath + "/" + country + "/" + country + OSM_SUFFIX;
-        mergePbfFiles(zonePbfFiles, countryFile, zonesFutures);
+        Tomtom2Osm instance = createInjector(new Tomtom2OsmModule(
+                inputFolder,
+                outputDirectoryPath + "/" + country + "/pbfFiles",
+                outputDirectoryPath + "/splitter",
+                zone,
+                settings)
+        ).getInstance(Tomtom2Osm.class);
 
-        log.info("Done generating country : {}", country);
-        return countryFile;
+        try {
+            Optional<Tomtom2Osm.Zone> generated = instance.run();
+            manifest.record(key, inputs, generated.map(Tomtom2Osm.Zone::getFile).orElse(null), generated.map(Tomtom2Osm.Zone::getSplitFiles).orElse(emptyList()));
+            return generated.map(Tomtom2Osm.Zone::getFile);
+        } catch (IOException e) {
+            log.info("Error when generating zone: {}", zone, e);
+            throw propagate(e);
+        }
     }
 
-    private void mergePbfFiles(List<String> inputPbfFiles, String outputFile, List<Future<?>> tasksToWaitFor) {
+    private void mergePbfFiles(List<String> inputKeys, List<String> inputPbfFiles, String outputFile, int partitions) {
+        String inputs = manifest.combine(inputKeys, osmMerger.getCompressionLevel(), directMerge);
+        if (manifest.upToDate(outputFile, inputs).isPresent()) {
+            log.info("Inputs of {} did not change, reusing previous output", outputFile);
+            return;
+        }
         try {
-            waitAllDone(tasksToWaitFor);
-            osmMerger.merge(inputPbfFiles, outputFile);
+            osmMerger.merge(inputPbfFiles, outputFile, partitions);
+            manifest.record(outputFile, inputs, outputFile);
         } catch (IOException e) {
-            propagate(e);
+            throw propagate(e);
         }
     }
 
-    private void waitAllDone(List<Future<?>> tasks) {
-        tasks.forEach(t -> {
-            try {
-                t.get();
-            } catch (ExecutionException|InterruptedException e) {
-                propagate(e);
-            }
-        });
+    private static String zoneKey(String country, String zone) {
+        return country + "/" + zone;
     }
 }
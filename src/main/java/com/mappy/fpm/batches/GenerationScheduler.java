@@ -0,0 +1,180 @@
+package com.mappy.fpm.batches;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Throwables.propagate;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs the tasks of a generation as a dependency graph on a fixed number of threads.
+ * A task is queued as soon as its dependencies are done. Queued tasks are started by priority (lowest first),
+ * then by decreasing cost, then in submission order.
+ * A task is only started when its estimated memory fits in the memory budget, unless no other task holds memory.
+ * Tasks submitted within a {@link #batch} are all queued before any of them starts.
+ */
+@Slf4j
+public class GenerationScheduler {
+    public static final int MERGE_PRIORITY = 0;
+    public static final int ZONE_PRIORITY = 1;
+
+    private final int nbThreads;
+    private final long memoryBudget;
+    private final ExecutorService executor;
+    private final NavigableSet<ScheduledTask> pending = new TreeSet<>();
+    private long sequence;
+    private int batches;
+    private int running;
+    private long reservedMemory;
+
+    public GenerationScheduler(int nbThreads) {
+        this(nbThreads, Long.MAX_VALUE);
+    }
+
+    public GenerationScheduler(int nbThreads, long memoryBudget) {
+        this.nbThreads = nbThreads;
+        this.memoryBudget = memoryBudget;
+        BasicThreadFactory threadFactory = new BasicThreadFactory.Builder().namingPattern("mappy-GenerateFullPbf-%d").daemon(false).build();
+        executor = new ThreadPoolExecutor(nbThreads, nbThreads, 0L, MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+    }
+
+    public <T> CompletableFuture<T> submit(int priority, Supplier<T> task) {
+        return submit(priority, 0, 0, task);
+    }
+
+    public <T> CompletableFuture<T> submit(int priority, long cost, long memory, Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        synchronized (this) {
+            pending.add(new ScheduledTask(priority, cost, memory, sequence++, () -> {
+                try {
+                    result.complete(task.get());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }));
+        }
+        dispatch();
+        return result;
+    }
+
+    /**
+     * Runs the given submissions without starting the tasks they submit, then starts these tasks by priority and cost:
+     * otherwise the first tasks submitted would start right away, whatever their cost.
+     */
+    public <T> T batch(Supplier<T> submissions) {
+        synchronized (this) {
+            batches++;
+        }
+        try {
+            return submissions.get();
+        } finally {
+            synchronized (this) {
+                batches--;
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Submits the task once all dependencies are done. Fails as soon as one of the dependencies fails.
+     */
+    public <T> CompletableFuture<T> submitAfter(List<? extends CompletableFuture<?>> dependencies, int priority, Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        for (CompletableFuture<?> dependency : dependencies) {
+            dependency.whenComplete((value, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+                }
+            });
+        }
+        CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[dependencies.size()])).thenRun(() -> submit(priority, task).whenComplete((value, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(value);
+            }
+        }));
+        return result;
+    }
+
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    public synchronized void shutdown() {
+        log.info("Shutting down service...");
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    private synchronized void dispatch() {
+        while (batches == 0 && running < nbThreads && !executor.isShutdown()) {
+            ScheduledTask next = pending.stream().filter(this::fits).findFirst().orElse(null);
+            if (next == null) {
+                return;
+            }
+            pending.remove(next);
+            running++;
+            reservedMemory += next.memory;
+            if (next.memory > 0) {
+                log.info("Starting task with cost {} and estimated memory {} Mo ({} Mo reserved)", next.cost, next.memory >> 20, reservedMemory >> 20);
+            }
+            executor.execute(() -> {
+                try {
+                    next.task.run();
+                } finally {
+                    release(next);
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    private boolean fits(ScheduledTask task) {
+        return reservedMemory == 0 || reservedMemory + task.memory <= memoryBudget;
+    }
+
+    private synchronized void release(ScheduledTask task) {
+        running--;
+        reservedMemory -= task.memory;
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        private final int priority;
+        private final long cost;
+        private final long memory;
+        private final long sequence;
+        private final Runnable task;
+
+        private ScheduledTask(int priority, long cost, long memory, long sequence, Runnable task) {
+            this.priority = priority;
+            this.cost = cost;
+            this.memory = memory;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            int compare = Integer.compare(priority, other.priority);
+            if (compare == 0) {
+                compare = Long.compare(other.cost, cost);
+            }
+            return compare != 0 ? compare : Long.compare(sequence, other.sequence);
+        }
+    }
+}
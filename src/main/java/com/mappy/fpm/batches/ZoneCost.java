@@ -0,0 +1,35 @@
+package com.mappy.fpm.batches;
+
+import lombok.Value;
+
+import java.io.File;
+import java.util.List;
+
+import static org.apache.commons.io.FilenameUtils.getExtension;
+
+/**
+ * Rough estimate of the work and of the heap needed to generate a zone, from the size of its input files.
+ * Dbf files are loaded into in-memory indexes (names, geocodes, speed profiles...) whereas shapefiles are streamed,
+ * only their node, way and relation ids being kept by the serializers.
+ */
+@Value
+public class ZoneCost {
+    private static final int DBF_MEMORY_RATIO = 3;
+    private static final int SHP_MEMORY_RATIO = 1;
+
+    private final long cost;
+    private final long memory;
+
+    public static ZoneCost estimate(List<File> zoneFiles) {
+        long dbf = 0;
+        long shp = 0;
+        for (File file : zoneFiles) {
+            if ("dbf".equals(getExtension(file.getName()))) {
+                dbf += file.length();
+            } else if ("shp".equals(getExtension(file.getName()))) {
+                shp += file.length();
+            }
+        }
+        return new ZoneCost(dbf + shp, DBF_MEMORY_RATIO * dbf + SHP_MEMORY_RATIO * shp);
+    }
+}
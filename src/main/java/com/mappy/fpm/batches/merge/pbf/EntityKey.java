@@ -0,0 +1,32 @@
+package com.mappy.fpm.batches.merge.pbf;
+
+import lombok.Value;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+/**
+ * Position of an entity in a file sorted by type then id.
+ */
+@Value
+public class EntityKey implements Comparable<EntityKey> {
+    private final EntityType type;
+    private final long id;
+
+    public static EntityKey of(Entity entity) {
+        return new EntityKey(entity.getType(), entity.getId());
+    }
+
+    @Override
+    public int compareTo(EntityKey other) {
+        int compare = Integer.compare(type.ordinal(), other.type.ordinal());
+        return compare != 0 ? compare : Long.compare(id, other.id);
+    }
+
+    /**
+     * Compares an entity to a key without allocating its own key.
+     */
+    public static int compare(Entity entity, EntityKey key) {
+        int compare = Integer.compare(entity.getType().ordinal(), key.type.ordinal());
+        return compare != 0 ? compare : Long.compare(entity.getId(), key.id);
+    }
+}
@@ -3,43 +3,63 @@ package com.mappy.fpm.batches.merge.pbf;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableMap;
+import com.mappy.fpm.batches.utils.LoserTreeMergingIterator;
+import com.mappy.fpm.batches.utils.PbfBlobDecoder;
 import lombok.extern.slf4j.Slf4j;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
 import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.collect.Lists.reverse;
+import static java.util.Arrays.asList;
 import static org.openstreetmap.osmosis.core.domain.v0_6.EntityType.*;
 
+/**
+ * Merges iterators of entities sorted by type then id. Entities with the same type and id, and all bounds, are merged
+ * into the entity of the first iterator, with the tags of the following ones appended.
+ */
 @Slf4j
 public class MergingOsmPbfIterator implements Iterator<EntityContainer> {
+    private static final Comparator<EntityContainer> TYPE_THEN_ID = (ec1, ec2) -> {
+        Entity entity1 = ec1.getEntity();
+        Entity entity2 = ec2.getEntity();
+        int compare = Integer.compare(entity1.getType().ordinal(), entity2.getType().ordinal());
+        if (compare != 0 || entity1.getType() == Bound) {
+            return compare;
+        }
+        return Long.compare(entity1.getId(), entity2.getId());
+    };
 
-    private final Iterator<EntityContainer> it1;
-    private final Iterator<EntityContainer> it2;
-    private EntityMergeResult next = new EntityMergeResult();
+    private final List<Iterator<EntityContainer>> iterators;
+    private final LoserTreeMergingIterator<EntityContainer> merge;
+    private boolean merged;
     private OsmPbfStats stats;
 
     public MergingOsmPbfIterator(Iterator<EntityContainer> it1, Iterator<EntityContainer> it2) {
-        this.it1 = it1;
-        this.it2 = it2;
+        this(asList(it1, it2));
+    }
+
+    public MergingOsmPbfIterator(List<? extends Iterator<EntityContainer>> iterators) {
+        this.iterators = new ArrayList<>(iterators);
+        this.merge = new LoserTreeMergingIterator<>(iterators, TYPE_THEN_ID, this::mergeTags);
+    }
+
+    private EntityContainer mergeTags(EntityContainer ec1, EntityContainer ec2) {
+        ec1.getEntity().getTags().addAll(ec2.getEntity().getTags());
+        merged = true;
+        return ec1;
     }
 
     @Override
     public boolean hasNext() {
-        if (next.getResult() != null) {
-            return true;
-        }
-        if (next.getEc1() == null) {
-            next.setEc1(it1.hasNext() ? it1.next() : null);
-        }
-        if (next.getEc2() == null) {
-            next.setEc2(it2.hasNext() ? it2.next() : null);
-        }
-        next = next.merge();
-        boolean result = next.getResult() != null;
+        boolean result = merge.hasNext();
         if (!result && stats != null) {
             stats.display();
             stats = null;
@@ -49,22 +69,47 @@ public class MergingOsmPbfIterator implements Iterator<EntityContainer> {
 
     @Override
     public EntityContainer next() {
-        if (next.getResult() == null) {
-            Preconditions.checkState(hasNext(), "cannot call next, no more elements in terator");
-        }
-        EntityContainer result = next.getResult();
-        next.setResult(null);
-        if (stats != null) stats.next(result.getEntity(), next.isMerged());
+        Preconditions.checkState(hasNext(), "cannot call next, no more elements in terator");
+        merged = false;
+        EntityContainer result = merge.next();
+        if (stats != null) stats.next(result.getEntity(), merged);
         return result;
     }
 
-    @SuppressWarnings("unchecked")
-    public static Iterator<EntityContainer> merge(Iterator<EntityContainer>... iterators) {
-        Iterator<EntityContainer> result = iterators[0];
-        for (Iterator<EntityContainer> iter : iterators) {
-            if (iter != result) result = new MergingOsmPbfIterator(iter, result);
+    /**
+     * Returns the whole block of the next entity when that entity starts a block of a {@link PbfIterator} and no other
+     * iterator has an entity within the range of the block: the block then goes to the output as is, and its entities are skipped.
+     * Returns null otherwise, entities are then read one by one. Uncompressed blocks are read one by one too, to be compressed in the output.
+     */
+    public PbfBlock nextBlockIfAlone() {
+        if (!merge.hasNext()) {
+            return null;
+        }
+        Iterator<EntityContainer> source = iterators.get(merge.nextSource());
+        if (!(source instanceof PbfIterator) || !((PbfIterator) source).isBlockStart()) {
+            return null;
+        }
+        PbfBlock block = ((PbfIterator) source).block();
+        if (!PbfBlobDecoder.isCompressed(block.getBlob().getData())) {
+            return null;
         }
-        ((MergingOsmPbfIterator) result).logStats();
+        EntityContainer runnerUp = merge.runnerUp();
+        if (runnerUp != null && TYPE_THEN_ID.compare(block.last(), runnerUp) >= 0) {
+            return null;
+        }
+        ((PbfIterator) source).skipBlock();
+        merge.next();
+        if (stats != null) block.getEntities().forEach(entity -> stats.next(entity.getEntity(), false));
+        return block;
+    }
+
+    /**
+     * Entities of the last iterators win, their tags first, as when these iterators were merged two by two.
+     */
+    @SafeVarargs
+    public static MergingOsmPbfIterator merge(Iterator<EntityContainer>... iterators) {
+        MergingOsmPbfIterator result = new MergingOsmPbfIterator(reverse(asList(iterators)));
+        result.logStats();
         return result;
     }
 
@@ -90,7 +135,7 @@ public class MergingOsmPbfIterator implements Iterator<EntityContainer> {
         }
 
         public void display() {
-            log.info("Done processing {} {} ({} merged) in {}", stats.get(currentType).get(), currentType, mergedStats.get(currentType).get(), watch);
+            log.info("Done processing {} {} ({} merged) in {}", stats.get(currentType).get(), currentType, mergedStats.get(currentType).get(), watch);
         }
     }
 }
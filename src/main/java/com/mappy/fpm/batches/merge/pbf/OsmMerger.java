@@ -1,46 +1,268 @@
 package com.mappy.fpm.batches.merge.pbf;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
-import crosby.binary.osmosis.OsmosisSerializer;
+import com.google.common.io.Files;
+import com.mappy.fpm.batches.utils.DecodingOptions;
+import com.mappy.fpm.batches.utils.MappedPbfReader;
+import com.mappy.fpm.batches.utils.ParallelBlockOutputStream;
+import com.mappy.fpm.batches.utils.PbfBlob;
+import com.mappy.fpm.batches.utils.PbfBlobDecoder;
+import com.mappy.fpm.batches.utils.PbfWriter;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
-import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
+import org.openstreetmap.osmosis.osmbinary.Fileformat.BlobHeader;
 
+import javax.inject.Inject;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Throwables.propagate;
+import static com.google.common.base.Throwables.propagateIfInstanceOf;
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.io.Files.copy;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.stream.Collectors.toList;
 
 @Slf4j
 public class OsmMerger {
+    private static final ExecutorService PARTITIONS = newCachedThreadPool(new BasicThreadFactory.Builder().namingPattern("mappy-OsmMerger-%d").daemon(true).build());
+
+    private final Timer mergeTimer;
+    private final Meter nodes;
+    private final Meter ways;
+    private final Meter relations;
+    private final Meter copiedBlocks;
+    @Getter
+    private final int compressionLevel;
+
+    /**
+     * Merger whose metrics are not reported.
+     */
+    public OsmMerger() {
+        this(new MetricRegistry());
+    }
+
+    @Inject
+    public OsmMerger(MetricRegistry registry) {
+        this(registry, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compressionLevel Zlib level of the merged files, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public OsmMerger(MetricRegistry registry, int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        mergeTimer = registry.timer("merge");
+        nodes = registry.meter(name("merge", "nodes"));
+        ways = registry.meter(name("merge", "ways"));
+        relations = registry.meter(name("merge", "relations"));
+        copiedBlocks = registry.meter(name("merge", "copied"));
+    }
 
     public void merge(List<String> inputFiles, String outputFile) throws IOException {
+        merge(inputFiles, outputFile, 1);
+    }
+
+    /**
+     * @param partitions Number of ranges of keys merged concurrently. Ranges are written to files of their own, then appended one to the other.
+     */
+    public void merge(List<String> inputFiles, String outputFile, int partitions) throws IOException {
         Preconditions.checkArgument(!inputFiles.isEmpty(), "At least one input file must be specify.");
 
-        if (inputFiles.size() == 1) {
+        if (inputFiles.size() == 1 && isCompressed(new File(inputFiles.get(0)))) {
             copy(new File(inputFiles.get(0)), new File(outputFile));
 
         } else {
             Stopwatch watch = Stopwatch.createStarted();
 
-            PbfIterator[] iterators = inputFiles.stream().map(PbfIterator::new).collect(toList()).toArray(new PbfIterator[] {});
-            Iterator<EntityContainer> merge = MergingOsmPbfIterator.merge(iterators);
-
             log.info("Writing merged data to {}", outputFile);
-            try (FileOutputStream output = new FileOutputStream(outputFile)) {
-                OsmosisSerializer serializer = new OsmosisSerializer(new BlockOutputStream(output));
-                while (merge.hasNext()) {
-                    serializer.process(merge.next());
-                }
-                serializer.complete();
+            if (partitions > 1) {
+                mergePartitions(inputFiles, outputFile, partitions);
+            }
+            else {
+                int readAhead = PbfIterator.readAhead(inputFiles.size());
+                writeMerged(inputFiles.stream().map(file -> new PbfIterator(file, readAhead, DecodingOptions.ALL)).collect(toList()), outputFile);
             }
             double size = new File(outputFile).length() / 1024.0 / 1024.0;
+            mergeTimer.update(watch.elapsed(NANOSECONDS), NANOSECONDS);
             log.info("Done writing {} ({} Mo) in {}.", outputFile, String.format("%.2f", size), watch);
         }
     }
+
+    /**
+     * Splits keys into ranges of about the same size in the inputs, from the index of their blobs, and merges each range on its own thread.
+     * Range files are valid pbf files: the first one becomes the output, the others are appended to it without their header.
+     */
+    private void mergePartitions(List<String> inputFiles, String outputFile, int partitions) throws IOException {
+        List<PbfIndex> indexes = inputFiles.stream().map(PbfIndex::of).collect(toList());
+        List<EntityKey> bounds = PbfIndex.split(indexes, partitions);
+        log.info("Merging {} ranges starting at {}", bounds.size() + 1, bounds);
+        int readAhead = PbfIterator.readAhead(inputFiles.size() * (bounds.size() + 1));
+
+        List<File> parts = newArrayList();
+        List<Future<?>> merges = newArrayList();
+        try {
+            for (int part = 0; part <= bounds.size(); part++) {
+                EntityKey from = part == 0 ? null : bounds.get(part - 1);
+                EntityKey to = part == bounds.size() ? null : bounds.get(part);
+                String partFile = outputFile + ".part" + part;
+                parts.add(new File(partFile));
+                merges.add(PARTITIONS.submit(() -> {
+                    writeMerged(indexes.stream().map(index -> PbfIterator.range(index, from, to, readAhead)).collect(toList()), partFile);
+                    return null;
+                }));
+            }
+            for (Future<?> merge : merges) {
+                await(merge);
+            }
+
+            File output = new File(outputFile);
+            Files.move(parts.get(0), output);
+            try (FileChannel channel = new FileOutputStream(output, true).getChannel()) {
+                for (File part : parts.subList(1, parts.size())) {
+                    appendWithoutHeader(part, channel);
+                }
+            }
+        }
+        finally {
+            merges.forEach(merge -> merge.cancel(true));
+            parts.forEach(File::delete);
+        }
+    }
+
+    private static void await(Future<?> merge) throws IOException {
+        try {
+            merge.get();
+        }
+        catch (ExecutionException e) {
+            propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw propagate(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * @return Whether the first data blob of the file is compressed, as files are written with the same compression throughout.
+     */
+    private static boolean isCompressed(File file) {
+        MappedPbfReader reader = new MappedPbfReader(file);
+        try {
+            while (reader.hasNext()) {
+                PbfBlob blob = reader.next();
+                if ("OSMData".equals(blob.getType())) {
+                    return PbfBlobDecoder.isCompressed(blob.getData());
+                }
+            }
+            return true;
+        }
+        finally {
+            reader.release();
+        }
+    }
+
+    private static void appendWithoutHeader(File part, FileChannel output) throws IOException {
+        MappedPbfReader reader = new MappedPbfReader(part);
+        long start;
+        try {
+            PbfBlob header = reader.next();
+            checkState("OSMHeader".equals(header.getType()), "%s does not start with a header", part);
+            start = reader.position();
+        }
+        finally {
+            reader.release();
+        }
+        try (FileChannel input = FileChannel.open(part.toPath(), READ)) {
+            long size = input.size();
+            for (long position = start; position < size; ) {
+                position += input.transferTo(position, size - position, output);
+            }
+        }
+    }
+
+    private void writeMerged(List<PbfIterator> iterators, String outputFile) throws IOException {
+        MergingOsmPbfIterator merge = MergingOsmPbfIterator.merge(iterators.toArray(new PbfIterator[] {}));
+        try (FileOutputStream output = new FileOutputStream(outputFile)) {
+            PbfWriter writer = new PbfWriter(new ParallelBlockOutputStream(output, compressionLevel));
+            while (merge.hasNext()) {
+                PbfBlock block = merge.nextBlockIfAlone();
+                if (block != null) {
+                    writeAsIs(block.getBlob(), writer, output);
+                    block.getEntities().forEach(this::mark);
+                    copiedBlocks.mark();
+                }
+                else {
+                    EntityContainer entity = merge.next();
+                    writer.process(entity);
+                    mark(entity);
+                }
+            }
+            writer.complete();
+        }
+        finally {
+            for (PbfIterator iterator : iterators) {
+                iterator.release();
+            }
+        }
+    }
+
+    /**
+     * Writes a blob of an input file as is, after the header and the entities the writer still holds.
+     */
+    private static void writeAsIs(PbfBlob blob, PbfWriter writer, FileOutputStream output) throws IOException {
+        writer.flush();
+
+        ByteBuffer data = blob.getData().duplicate();
+        BlobHeader.Builder builder = BlobHeader.newBuilder().setType(blob.getType()).setDatasize(data.remaining());
+        if (blob.getIndexData() != null) {
+            builder.setIndexdata(blob.getIndexData());
+        }
+        BlobHeader header = builder.build();
+        DataOutputStream headerOutput = new DataOutputStream(output);
+        headerOutput.writeInt(header.getSerializedSize());
+        header.writeTo(headerOutput);
+        headerOutput.flush();
+
+        FileChannel channel = output.getChannel();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private void mark(EntityContainer entity) {
+        switch (entity.getEntity().getType()) {
+            case Node:
+                nodes.mark();
+                break;
+            case Way:
+                ways.mark();
+                break;
+            case Relation:
+                relations.mark();
+                break;
+            default:
+                break;
+        }
+    }
 }
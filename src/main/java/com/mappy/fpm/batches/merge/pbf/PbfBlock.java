@@ -0,0 +1,25 @@
+package com.mappy.fpm.batches.merge.pbf;
+
+import com.mappy.fpm.batches.utils.PbfBlob;
+import lombok.Value;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+
+import java.util.List;
+
+/**
+ * A blob of a pbf file and the entities decoded from it, in file order. The blob holds every part of the entities,
+ * whatever was decoded.
+ */
+@Value
+public class PbfBlock {
+    private final PbfBlob blob;
+    private final List<EntityContainer> entities;
+
+    public EntityContainer first() {
+        return entities.get(0);
+    }
+
+    public EntityContainer last() {
+        return entities.get(entities.size() - 1);
+    }
+}
@@ -0,0 +1,121 @@
+package com.mappy.fpm.batches.merge.pbf;
+
+import com.mappy.fpm.batches.utils.BlockRange;
+import com.mappy.fpm.batches.utils.DecodingOptions;
+import com.mappy.fpm.batches.utils.MappedPbfReader;
+import com.mappy.fpm.batches.utils.PbfBlob;
+import com.mappy.fpm.batches.utils.PbfBlobDecoder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Position and key range of the data blobs of a pbf file sorted by type then id, to start reading it anywhere.
+ * Ranges are read from blob headers written by {@link com.mappy.fpm.batches.utils.PbfWriter}, blobs without are decoded.
+ */
+@Slf4j
+@Value
+public class PbfIndex {
+    private static final DecodingOptions KEYS_ONLY = DecodingOptions.ALL.withTags(false).withMetadata(false);
+
+    private final String file;
+    private final long size;
+    private final List<Entry> entries;
+
+    @Value
+    public static class Entry {
+        private final long position;
+        private final long length;
+        private final EntityKey first;
+        private final EntityKey last;
+    }
+
+    public static PbfIndex of(String file) {
+        MappedPbfReader reader = new MappedPbfReader(new File(file));
+        int decoded = 0;
+        try {
+            List<Entry> entries = newArrayList();
+            while (reader.hasNext()) {
+                long position = reader.position();
+                PbfBlob blob = reader.next();
+                if (!"OSMData".equals(blob.getType())) {
+                    continue;
+                }
+                long length = reader.position() - position;
+                BlockRange range = BlockRange.parse(blob.getIndexData());
+                if (range != null) {
+                    entries.add(new Entry(position, length, new EntityKey(range.getType(), range.getFirstId()), new EntityKey(range.getType(), range.getLastId())));
+                }
+                else {
+                    decoded++;
+                    List<EntityContainer> entities = PbfBlobDecoder.processOsmPrimitives(blob, KEYS_ONLY);
+                    if (!entities.isEmpty()) {
+                        entries.add(new Entry(position, length, EntityKey.of(entities.get(0).getEntity()), EntityKey.of(entities.get(entities.size() - 1).getEntity())));
+                    }
+                }
+            }
+            if (decoded > 0) {
+                log.info("Decoded {} blobs of {} without index data", decoded, file);
+            }
+            return new PbfIndex(file, new File(file).length(), Collections.unmodifiableList(entries));
+        }
+        finally {
+            reader.release();
+        }
+    }
+
+    /**
+     * @return Position of the first blob which may hold keys from the given one, the end of the file when there is none.
+     */
+    public long start(EntityKey from) {
+        for (Entry entry : entries) {
+            if (entry.getLast().compareTo(from) >= 0) {
+                return entry.getPosition();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Position of the first blob which only holds keys from the given one, the end of the file when there is none.
+     */
+    public long end(EntityKey to) {
+        for (Entry entry : entries) {
+            if (entry.getFirst().compareTo(to) >= 0) {
+                return entry.getPosition();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Splits the keys of sorted files into ranges of about the same number of bytes, read from blob sizes.
+     *
+     * @return The increasing keys where ranges start, but the first one starting before any key: at most partitions - 1 keys.
+     */
+    public static List<EntityKey> split(List<PbfIndex> indexes, int partitions) {
+        List<Entry> entries = new ArrayList<>();
+        indexes.forEach(index -> entries.addAll(index.getEntries()));
+        entries.sort(Comparator.comparing(Entry::getFirst));
+        long total = entries.stream().mapToLong(Entry::getLength).sum();
+
+        List<EntityKey> bounds = newArrayList();
+        long cumulated = 0;
+        for (Entry entry : entries) {
+            long next = total * (bounds.size() + 1) / partitions;
+            if (bounds.size() < partitions - 1 && cumulated >= next && (bounds.isEmpty() || entry.getFirst().compareTo(bounds.get(bounds.size() - 1)) > 0)) {
+                bounds.add(entry.getFirst());
+            }
+            cumulated += entry.getLength();
+        }
+        return bounds;
+    }
+}
@@ -1,38 +1,192 @@
 package com.mappy.fpm.batches.merge.pbf;
 
+import com.mappy.fpm.batches.utils.DecodingOptions;
+import com.mappy.fpm.batches.utils.MappedPbfReader;
+import com.mappy.fpm.batches.utils.PbfBlob;
 import com.mappy.fpm.batches.utils.PbfBlobDecoder;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
-import org.openstreetmap.osmosis.pbf2.v0_6.impl.PbfStreamSplitter;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.util.Iterator;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Throwables.propagate;
-import static com.mappy.fpm.batches.utils.CollectionUtils.streamIterator;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 
-public class PbfIterator implements Iterator<EntityContainer> {
+/**
+ * Iterates over the entities of a pbf file. Blobs are read ahead from the file mapped in memory by the iterating thread, and inflated and decoded
+ * by a pool shared by all iterators. Decoded blobs are consumed in file order.
+ * The iteration can be restricted to a range of keys of a sorted file, it then starts at the first blob of the range.
+ */
+public class PbfIterator implements ReleasableIterator<EntityContainer> {
+    private static final int DECODER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService DECODERS = newFixedThreadPool(DECODER_THREADS, new BasicThreadFactory.Builder().namingPattern("mappy-PbfDecoder-%d").daemon(true).build());
 
-    private final Iterator<EntityContainer> iterator;
+    private static final PbfBlock NO_BLOCK = new PbfBlock(null, emptyList());
+
+    private final MappedPbfReader reader;
+    private final int readAhead;
+    private final DecodingOptions options;
+    private final EntityKey from;
+    private final EntityKey to;
+    private final Deque<Future<PbfBlock>> decoding = new ArrayDeque<>();
+    private PbfBlock block = NO_BLOCK;
+    private boolean wholeBlock;
+    private int position;
+    private boolean closed;
 
     public PbfIterator(String pbfFile) {
-        try {
-            PbfStreamSplitter splitter = new PbfStreamSplitter(new DataInputStream(new FileInputStream(pbfFile)));
-            iterator = streamIterator(splitter).flatMap(blob -> PbfBlobDecoder.processOsmPrimitives(blob).stream()).iterator();
-        }
-        catch (FileNotFoundException e) {
-            throw propagate(e);
+        this(pbfFile, DecodingOptions.ALL);
+    }
+
+    public PbfIterator(String pbfFile, DecodingOptions options) {
+        this(pbfFile, DECODER_THREADS, options);
+    }
+
+    /**
+     * @param readAhead Maximum number of blobs being decoded or waiting to be iterated.
+     */
+    public PbfIterator(String pbfFile, int readAhead, DecodingOptions options) {
+        this(pbfFile, readAhead, options, null, null, null);
+    }
+
+    private PbfIterator(String pbfFile, int readAhead, DecodingOptions options, PbfIndex index, EntityKey from, EntityKey to) {
+        checkArgument(readAhead > 0, "Read ahead must be positive, got %s", readAhead);
+        this.readAhead = readAhead;
+        this.options = options;
+        this.from = from;
+        this.to = to;
+        this.reader = new MappedPbfReader(new File(pbfFile));
+        if (index != null) {
+            long start = from == null ? 0 : index.start(from);
+            reader.seek(start, Math.max(start, to == null ? index.getSize() : index.end(to)));
         }
     }
 
+    /**
+     * Iterates over the entities of a sorted file from a key, included, to another one, excluded. Null keys leave the range open.
+     */
+    public static PbfIterator range(PbfIndex index, EntityKey from, EntityKey to) {
+        return range(index, from, to, DECODER_THREADS);
+    }
+
+    public static PbfIterator range(PbfIndex index, EntityKey from, EntityKey to, int readAhead) {
+        return new PbfIterator(index.getFile(), readAhead, DecodingOptions.ALL, index, from, to);
+    }
+
+    /**
+     * @return Blobs each iterator reads ahead when the given number of iterators are read together, so that they hold a few blobs
+     * per decoding thread all together, and not as many per iterator.
+     */
+    public static int readAhead(int iterators) {
+        return Math.max(1, Math.min(DECODER_THREADS, 4 * DECODER_THREADS / Math.max(1, iterators)));
+    }
+
     @Override
     public boolean hasNext() {
-        return iterator.hasNext();
+        while (true) {
+            while (position == block.getEntities().size()) {
+                readAhead();
+                if (decoding.isEmpty()) {
+                    return false;
+                }
+                block = await(decoding.poll());
+                position = 0;
+                wholeBlock = !block.getEntities().isEmpty() && inRange(block.first()) && inRange(block.last());
+            }
+            EntityContainer next = block.getEntities().get(position);
+            if (to != null && EntityKey.compare(next.getEntity(), to) >= 0) {
+                release();
+                return false;
+            }
+            if (from == null || EntityKey.compare(next.getEntity(), from) >= 0) {
+                return true;
+            }
+            position++;
+        }
+    }
+
+    private boolean inRange(EntityContainer container) {
+        return (from == null || EntityKey.compare(container.getEntity(), from) >= 0) && (to == null || EntityKey.compare(container.getEntity(), to) < 0);
     }
 
     @Override
     public EntityContainer next() {
-        return iterator.next();
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return block.getEntities().get(position++);
+    }
+
+    /**
+     * @return The block of the entity last returned by {@link #next()}.
+     */
+    public PbfBlock block() {
+        return block;
+    }
+
+    /**
+     * @return Whether the entity last returned by {@link #next()} is the first of its block, and the whole block is in range.
+     */
+    public boolean isBlockStart() {
+        return position == 1 && wholeBlock;
+    }
+
+    /**
+     * Skips the entities left in the block of the entity last returned by {@link #next()}.
+     */
+    public void skipBlock() {
+        position = block.getEntities().size();
+    }
+
+    private void readAhead() {
+        while (!closed && decoding.size() < readAhead) {
+            if (!reader.hasNext()) {
+                close();
+                return;
+            }
+            PbfBlob blob = reader.next();
+            decoding.add(DECODERS.submit(() -> new PbfBlock(blob, PbfBlobDecoder.processOsmPrimitives(blob, options))));
+        }
+    }
+
+    private static PbfBlock await(Future<PbfBlock> decoded) {
+        try {
+            return decoded.get();
+        }
+        catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+    }
+
+    private void close() {
+        if (!closed) {
+            closed = true;
+            reader.release();
+        }
+    }
+
+    /**
+     * Closes the file and drops the blobs read ahead.
+     */
+    @Override
+    public void release() {
+        close();
+        decoding.forEach(decoded -> decoded.cancel(false));
+        decoding.clear();
+        block = NO_BLOCK;
+        position = 0;
     }
 }
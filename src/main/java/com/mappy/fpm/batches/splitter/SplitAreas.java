@@ -1,50 +1,195 @@
 package com.mappy.fpm.batches.splitter;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.index.strtree.STRtree;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntList;
 import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Throwables.propagate;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+/**
+ * Areas of split.csv, which split the world as a quadtree. Areas are compiled into arrays of the quadtree nodes: a lookup walks down
+ * the tree without allocating. An area is numbered after its line in the file, from 0.
+ * Points on the border of two areas belong to the one at their east or north, envelopes touching an area include it.
+ */
 public class SplitAreas {
-
-    private static final GeometryFactory gf = new GeometryFactory();
-    private final STRtree tree;
+    private final double[] minX;
+    private final double[] minY;
+    private final double[] maxX;
+    private final double[] maxY;
+    // Node splits and children: south west, south east, north west then north east. Children below 0 are the areas -child - 1.
+    private final double[] splitX;
+    private final double[] splitY;
+    private final int[] children;
+    private final int root;
+    private final Envelope bounds;
+    private int nodes;
 
     public SplitAreas() {
         try {
-            this.tree = new STRtree();
-            int i = 1;
+            List<String> lines = IOUtils.readLines(getClass().getResourceAsStream("/split.csv"), UTF_8);
+            int size = lines.size();
+            minX = new double[size];
+            minY = new double[size];
+            maxX = new double[size];
+            maxY = new double[size];
+            IntArrayList all = new IntArrayList(size);
             WKTReader reader = new WKTReader();
-            for (String line : IOUtils.readLines(getClass().getResourceAsStream("/split.csv"), UTF_8)) {
-                tree.insert(reader.read(line).getEnvelopeInternal(), String.valueOf(i++));
+            for (int area = 0; area < size; area++) {
+                Envelope envelope = reader.read(lines.get(area)).getEnvelopeInternal();
+                minX[area] = envelope.getMinX();
+                minY[area] = envelope.getMinY();
+                maxX[area] = envelope.getMaxX();
+                maxY[area] = envelope.getMaxY();
+                all.add(area);
             }
+            splitX = new double[size];
+            splitY = new double[size];
+            children = new int[4 * size];
+            bounds = new Envelope(min(minX), max(maxX), min(minY), max(maxY));
+            root = build(all, bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY());
         }
         catch (IOException | ParseException e) {
             throw propagate(e);
         }
     }
 
-    @SuppressWarnings("unchecked")
-    public List<String> file(Envelope envelope) {
-        return tree.query(envelope);
+    /**
+     * @return Areas parsed once for the whole JVM, lookups are thread safe.
+     */
+    public static SplitAreas shared() {
+        return Shared.AREAS;
+    }
+
+    public int size() {
+        return minX.length;
+    }
+
+    /**
+     * @return The name of the directory of an area, its line in split.csv from 1.
+     */
+    public static String name(int area) {
+        return String.valueOf(area + 1);
+    }
+
+    /**
+     * @return The area of the point, -1 when it is out of all areas.
+     */
+    public int area(double x, double y) {
+        if (!(x >= bounds.getMinX() && x <= bounds.getMaxX() && y >= bounds.getMinY() && y <= bounds.getMaxY())) {
+            return -1;
+        }
+        int node = root;
+        while (node >= 0) {
+            node = children[4 * node + (y >= splitY[node] ? 2 : 0) + (x >= splitX[node] ? 1 : 0)];
+        }
+        return -node - 1;
+    }
+
+    /**
+     * Adds the areas the envelope intersects to the result.
+     */
+    public void areas(Envelope envelope, IntCollection result) {
+        if (!envelope.isNull()) {
+            collect(root, envelope, result);
+        }
+    }
+
+    private void collect(int node, Envelope envelope, IntCollection result) {
+        if (node < 0) {
+            int area = -node - 1;
+            if (envelope.getMinX() <= maxX[area] && envelope.getMaxX() >= minX[area] && envelope.getMinY() <= maxY[area] && envelope.getMaxY() >= minY[area]) {
+                result.add(area);
+            }
+            return;
+        }
+        boolean west = envelope.getMinX() <= splitX[node];
+        boolean east = envelope.getMaxX() >= splitX[node];
+        boolean south = envelope.getMinY() <= splitY[node];
+        boolean north = envelope.getMaxY() >= splitY[node];
+        if (south && west) {
+            collect(children[4 * node], envelope, result);
+        }
+        if (south && east) {
+            collect(children[4 * node + 1], envelope, result);
+        }
+        if (north && west) {
+            collect(children[4 * node + 2], envelope, result);
+        }
+        if (north && east) {
+            collect(children[4 * node + 3], envelope, result);
+        }
+    }
+
+    /**
+     * Splits the areas within the bounds at the area borders closest to the middle of the bounds, which are the middle lines of the quadtree.
+     *
+     * @return The node of the areas, or the area itself when it is the only one.
+     */
+    private int build(IntList areas, double west, double south, double east, double north) {
+        checkState(!areas.isEmpty(), "No split area within [%s, %s, %s, %s]", west, south, east, north);
+        if (areas.size() == 1) {
+            return -areas.getInt(0) - 1;
+        }
+        double middleX = closestBorder(areas, minX, west, (west + east) / 2);
+        double middleY = closestBorder(areas, minY, south, (south + north) / 2);
+
+        IntList[] quadrants = {new IntArrayList(), new IntArrayList(), new IntArrayList(), new IntArrayList()};
+        for (int i = 0; i < areas.size(); i++) {
+            int area = areas.getInt(i);
+            boolean isEast = minX[area] >= middleX;
+            boolean isNorth = minY[area] >= middleY;
+            checkState((isEast || maxX[area] <= middleX) && (isNorth || maxY[area] <= middleY), "Split area %s crosses the middle of its quadtree node", name(area));
+            quadrants[(isNorth ? 2 : 0) + (isEast ? 1 : 0)].add(area);
+        }
+
+        int node = nodes++;
+        splitX[node] = middleX;
+        splitY[node] = middleY;
+        children[4 * node] = build(quadrants[0], west, south, middleX, middleY);
+        children[4 * node + 1] = build(quadrants[1], middleX, south, east, middleY);
+        children[4 * node + 2] = build(quadrants[2], west, middleY, middleX, north);
+        children[4 * node + 3] = build(quadrants[3], middleX, middleY, east, north);
+        return node;
     }
 
-    @SuppressWarnings("unchecked")
-    public String file(double x, double y) {
-        List<String> query = tree.query(point(x, y));
-        return !query.isEmpty() ? query.get(0) : null;
+    private static double closestBorder(IntList areas, double[] mins, double start, double middle) {
+        double closest = Double.NaN;
+        for (int i = 0; i < areas.size(); i++) {
+            double border = mins[areas.getInt(i)];
+            if (border > start && (Double.isNaN(closest) || Math.abs(border - middle) < Math.abs(closest - middle))) {
+                closest = border;
+            }
+        }
+        checkState(!Double.isNaN(closest), "Split areas overlap around %s", middle);
+        return closest;
+    }
+
+    private static double min(double[] values) {
+        double min = Double.POSITIVE_INFINITY;
+        for (double value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static double max(double[] values) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
     }
 
-    private static Envelope point(double x, double y) {
-        return gf.createPoint(new Coordinate(x, y)).getEnvelopeInternal();
+    private static final class Shared {
+        private static final SplitAreas AREAS = new SplitAreas();
     }
 }
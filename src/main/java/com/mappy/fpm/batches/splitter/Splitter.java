@@ -1,18 +1,18 @@
 package com.mappy.fpm.batches.splitter;
 
-import com.github.davidmoten.geo.LatLong;
+import com.codahale.metrics.annotation.Timed;
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.vividsolutions.jts.geom.Envelope;
+import com.mappy.fpm.batches.merge.pbf.PbfIterator;
+import com.mappy.fpm.batches.utils.DecodingOptions;
+import com.mappy.fpm.batches.utils.LongMultimap;
 import lombok.extern.slf4j.Slf4j;
 import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
 import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
 import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
-import org.openstreetmap.osmosis.pbf2.v0_6.PbfReader;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -21,7 +21,9 @@ import java.util.List;
 import java.util.Set;
 
 import static com.mappy.fpm.batches.GenerateFullPbf.OSM_SUFFIX;
-import static com.mappy.fpm.batches.utils.Geohash.decodeGeohash;
+import static com.mappy.fpm.batches.utils.Geohash.decodeLatitude;
+import static com.mappy.fpm.batches.utils.Geohash.decodeLongitude;
+import static java.util.Collections.emptyMap;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 @Slf4j
@@ -35,28 +37,34 @@ public class Splitter {
         this.kml = kml;
     }
 
-    public void run() {
+    /**
+     * @return The files the zone was split into.
+     */
+    @Timed(name = "split", absolute = true)
+    public List<String> run() {
         File file = new File(filename);
         Stopwatch stopwatch = Stopwatch.createStarted();
 
-        Multimap<Long, Long> wayByRelations = ArrayListMultimap.create();
-        Multimap<Long, Integer> borderNodeTargets = ArrayListMultimap.create();
+        // Primitive multimaps: border crossing ways add a pair per node and target.
+        LongMultimap wayByRelations = new LongMultimap();
+        LongMultimap borderNodeTargets = new LongMultimap();
         firstPass(file, wayByRelations, borderNodeTargets);
         finalPass(wayByRelations, borderNodeTargets, file);
 
         kml.close();
         log.info("time: {}s", stopwatch.elapsed(SECONDS));
+        return kml.getFiles();
     }
 
-    private void finalPass(Multimap<Long, Long> wayByRelations, Multimap<Long, Integer> borderNodeTargets, File file) {
-        Multimap<Long, Integer> relationTargets = ArrayListMultimap.create();
+    private void finalPass(LongMultimap wayByRelations, LongMultimap borderNodeTargets, File file) {
+        LongMultimap relationTargets = new LongMultimap();
         read(file, new SplitterSink("final pass") {
             @Override
             public void process(NodeContainer node) {
-                long id = node.getEntity().getId();
-                if (borderNodeTargets.containsKey(id)) {
-                    for (int target : borderNodeTargets.get(id)) {
-                        kml.serializer(target).process(node);
+                long[] targets = borderNodeTargets.get(node.getEntity().getId());
+                if (targets.length > 0) {
+                    for (long target : targets) {
+                        kml.serializer((int) target).process(node);
                     }
                 }
                 else {
@@ -67,9 +75,9 @@ public class Splitter {
             @Override
             public void process(WayContainer way) {
                 List<Integer> targets = kml.serializer(envelope(way));
-                if (wayByRelations.containsKey(way.getEntity().getId())) {
-                    for (Long rel : wayByRelations.get(way.getEntity().getId())) {
-                        relationTargets.putAll(rel, targets);
+                for (long rel : wayByRelations.get(way.getEntity().getId())) {
+                    for (int target : targets) {
+                        relationTargets.put(rel, target);
                     }
                 }
                 for (int target : targets) {
@@ -81,7 +89,9 @@ public class Splitter {
             public void process(RelationContainer rel) {
                 List<Integer> serializer = kml.serializer(envelope(rel));
                 Set<Integer> targets = Sets.newHashSet(serializer);
-                targets.addAll(Sets.newHashSet(relationTargets.get(rel.getEntity().getId())));
+                for (long target : relationTargets.get(rel.getEntity().getId())) {
+                    targets.add((int) target);
+                }
                 for (int target : targets) {
                     kml.serializer(target).process(rel);
                 }
@@ -89,8 +99,9 @@ public class Splitter {
         });
     }
 
-    private void firstPass(File file, Multimap<Long, Long> wayByRelations, Multimap<Long, Integer> borderNodeTargets) {
-        read(file, new SplitterSink("first pass") {
+    private void firstPass(File file, LongMultimap wayByRelations, LongMultimap borderNodeTargets) {
+        // Only way nodes and relation members are needed to find border nodes and relation ways.
+        read(file, DecodingOptions.ALL.withNodes(false).withTags(false).withMetadata(false), new SplitterSink("first pass") {
             @Override
             public void process(NodeContainer node) {}
 
@@ -118,8 +129,7 @@ public class Splitter {
     private static Envelope envelope(WayContainer way) {
         Envelope env = new Envelope();
         for (WayNode wn : way.getEntity().getWayNodes()) {
-            LatLong geohash = decodeGeohash(wn.getNodeId());
-            env.expandToInclude(geohash.getLon(), geohash.getLat());
+            env.expandToInclude(decodeLongitude(wn.getNodeId()), decodeLatitude(wn.getNodeId()));
         }
         return env;
     }
@@ -127,15 +137,27 @@ public class Splitter {
     private static Envelope envelope(RelationContainer rel) {
         Envelope env = new Envelope();
         for (RelationMember wn : rel.getEntity().getMembers()) {
-            LatLong geohash = decodeGeohash(wn.getMemberId());
-            env.expandToInclude(geohash.getLon(), geohash.getLat());
+            env.expandToInclude(decodeLongitude(wn.getMemberId()), decodeLatitude(wn.getMemberId()));
         }
         return env;
     }
 
     public static void read(File file, SplitterSink sink) {
-        PbfReader reader = new PbfReader(file, 2);
-        reader.setSink(sink);
-        reader.run();
+        read(file, DecodingOptions.ALL, sink);
+    }
+
+    public static void read(File file, DecodingOptions options, SplitterSink sink) {
+        PbfIterator iterator = new PbfIterator(file.getPath(), options);
+        try {
+            sink.initialize(emptyMap());
+            while (iterator.hasNext()) {
+                sink.process(iterator.next());
+            }
+            sink.complete();
+        }
+        finally {
+            iterator.release();
+            sink.release();
+        }
     }
 }
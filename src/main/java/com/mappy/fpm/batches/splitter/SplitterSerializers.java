@@ -1,9 +1,9 @@
 package com.mappy.fpm.batches.splitter;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.mappy.fpm.batches.utils.PbfWriter;
 import com.vividsolutions.jts.geom.Envelope;
-import crosby.binary.osmosis.OsmosisSerializer;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.openstreetmap.osmosis.core.misc.v0_6.NullWriter;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
 import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
@@ -13,28 +13,31 @@ import javax.inject.Named;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import static com.google.common.base.Throwables.propagate;
-import static java.util.stream.Collectors.toList;
 
 public class SplitterSerializers {
     private final String pbf;
-    private final SplitAreas areas = new SplitAreas();
+    private final SplitAreas areas = SplitAreas.shared();
     private final List<Sink> serializers = Lists.newArrayList();
-    private final Map<String, Integer> index = Maps.newHashMap();
+    // Serializer of each area, -1 until the area gets its first entity.
+    private final int[] index = new int[areas.size()];
+    private final Sink outOfAreas = new NullWriter();
     private final String parent;
+    private final List<String> files = Lists.newArrayList();
 
     @Inject
     public SplitterSerializers(@Named("com.mappy.fpm.splitter.output") String parent, @Named("com.mappy.fpm.tomtom.zone") String pbf) {
         this.parent = parent;
         this.pbf = pbf + ".osm.pbf";
+        Arrays.fill(index, -1);
     }
 
     public Sink serializer(int j) {
         if (j == -1) {
-            return new NullWriter();
+            return outOfAreas;
         }
         return serializers.get(j);
     }
@@ -44,30 +47,34 @@ public class SplitterSerializers {
     }
 
     public List<Integer> serializer(Envelope env) {
-        return areas.file(env).stream().map(this::serializerIndex).filter(i -> i >= 0).collect(toList());
+        IntArrayList targets = new IntArrayList();
+        areas.areas(env, targets);
+        for (int i = 0; i < targets.size(); i++) {
+            targets.set(i, serializerIndex(targets.getInt(i)));
+        }
+        return targets;
     }
 
     private int serializerIndex(double x, double y) {
-        String file = areas.file(x, y);
-        if (file == null) {
-            return -1;
-        }
-        return serializerIndex(file);
+        return serializerIndex(areas.area(x, y));
     }
 
-    private int serializerIndex(String filename) {
+    private int serializerIndex(int area) {
+        if (area < 0) {
+            return -1;
+        }
+        if (index[area] >= 0) {
+            return index[area];
+        }
         try {
-            if (index.containsKey(filename)) {
-                return index.get(filename);
-            }
-            File file = new File(parent, filename + "/" + pbf);
+            File file = new File(parent, SplitAreas.name(area) + "/" + pbf);
             file.getParentFile().mkdirs();
+            files.add(file.getPath());
             BlockOutputStream os = new BlockOutputStream(new FileOutputStream(file));
             os.setCompress("none");
-            OsmosisSerializer serializer = new OsmosisSerializer(os);
-            serializers.add(serializer);
+            serializers.add(new PbfWriter(os));
             int last = serializers.size() - 1;
-            index.put(filename, last);
+            index[area] = last;
             return last;
         }
         catch (FileNotFoundException e) {
@@ -75,6 +82,13 @@ public class SplitterSerializers {
         }
     }
 
+    /**
+     * @return The files of the areas which got entities, in the order they got their first one.
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+
     public void close() {
         for (Sink serializer : serializers) {
             serializer.complete();
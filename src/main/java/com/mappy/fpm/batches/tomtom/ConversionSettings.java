@@ -0,0 +1,36 @@
+package com.mappy.fpm.batches.tomtom;
+
+import com.codahale.metrics.MetricRegistry;
+import com.mappy.fpm.batches.utils.IdTrackers;
+import com.mappy.fpm.batches.utils.SortSettings;
+import lombok.Value;
+import lombok.experimental.Wither;
+
+/**
+ * Tuning of the conversion of the shapefiles of a zone.
+ */
+@Value
+@Wither
+public class ConversionSettings {
+    public static final ConversionSettings DEFAULT = new ConversionSettings(1, IdTrackers.HEAP, SortSettings.DEFAULT, true, false);
+
+    private final int shapefileThreads;
+    private final IdTrackers trackers;
+    private final SortSettings sortSettings;
+    /**
+     * Whether shapefile conversions write the version, timestamp, user and changeset of entities. They are the same for all
+     * entities, and merges only write the metadata of entities which have some.
+     */
+    private final boolean metadata;
+    /**
+     * Whether all shapefiles of a zone write into a single sorter and the zone file, instead of a file each merged afterwards.
+     */
+    private final boolean sharedSink;
+
+    /**
+     * @return The registry of the sort settings, which every stage of the conversion reports to.
+     */
+    public MetricRegistry getMetrics() {
+        return sortSettings.getMetrics();
+    }
+}
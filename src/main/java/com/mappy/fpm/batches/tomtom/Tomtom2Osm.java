@@ -1,24 +1,41 @@
 package com.mappy.fpm.batches.tomtom;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Stopwatch;
 import com.google.common.reflect.ClassPath;
 import com.google.common.reflect.ClassPath.ClassInfo;
 import com.google.inject.Injector;
 import com.mappy.fpm.batches.merge.pbf.OsmMerger;
 import com.mappy.fpm.batches.splitter.Splitter;
+import com.mappy.fpm.batches.utils.BoundComputerAndSorterSink;
+import com.mappy.fpm.batches.utils.IdTrackers;
+import com.mappy.fpm.batches.utils.PbfSink;
+import com.mappy.fpm.batches.utils.SharedSink;
+import com.mappy.fpm.batches.utils.SortSettings;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
+import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.mappy.fpm.batches.GenerateFullPbf.OSM_SUFFIX;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.stream.Collectors.toList;
 
 @Slf4j
@@ -28,47 +45,137 @@ public class Tomtom2Osm {
     private final OsmMerger osmMerger;
     private final Splitter splitter;
     private final String outputZone;
+    private final int shapefileThreads;
+    private final IdTrackers trackers;
+    private final SortSettings sortSettings;
+    private final boolean metadata;
+    private final boolean sharedSink;
+    private final Timer zoneTimer;
+    private final MetricRegistry registry;
 
     @Inject
-    public Tomtom2Osm(Injector injector, OsmMerger osmMerger, Splitter splitter, @Named("com.mappy.fpm.serializer.output") String outputZone) {
+    public Tomtom2Osm(Injector injector, OsmMerger osmMerger, Splitter splitter,
+                      @Named("com.mappy.fpm.serializer.output") String outputZone,
+                      @Named("com.mappy.fpm.tomtom.shapefile.threads") int shapefileThreads,
+                      @Named("com.mappy.fpm.serializer.trackers") IdTrackers trackers,
+                      SortSettings sortSettings,
+                      @Named("com.mappy.fpm.serializer.metadata") boolean metadata,
+                      @Named("com.mappy.fpm.tomtom.shared.sink") boolean sharedSink,
+                      MetricRegistry registry) {
         this.injector = injector;
+        this.registry = registry;
+        this.zoneTimer = registry.timer("zone");
         this.osmMerger = osmMerger;
         this.splitter = splitter;
         this.outputZone = outputZone;
+        this.shapefileThreads = shapefileThreads;
+        this.trackers = trackers;
+        this.sortSettings = sortSettings;
+        this.metadata = metadata;
+        this.sharedSink = sharedSink;
     }
 
-    public Optional<String> run() throws IOException {
+    public Optional<Zone> run() throws IOException {
         Stopwatch stopwatch = Stopwatch.createStarted();
         log.info("Start generating {}", outputZone);
         new File(outputZone).mkdirs();
 
-        List<String> profileShapeFiles = newArrayList();
-
+        // Shapefiles are instantiated sequentially: their constructors load shared providers (alternate names...).
+        List<TomtomShapefile> shapefiles = newArrayList();
         for (ClassInfo clazz : shapefiles()) {
-            log.info("Converting {}", clazz.getSimpleName());
             TomtomShapefile shapefile = (TomtomShapefile) injector.getInstance(clazz.load());
             if (shapefile.getFile().exists()) {
-                shapefile.serialize(outputZone);
-                profileShapeFiles.add(shapefile.getOutputFile());
+                shapefiles.add(shapefile);
             } else {
-                log.info("No input file found");
+                log.info("No input file found for {}", clazz.getSimpleName());
             }
         }
 
-        if (profileShapeFiles.isEmpty()) {
+        if (shapefiles.isEmpty()) {
             return empty();
         }
 
-        osmMerger.merge(profileShapeFiles, outputZone + OSM_SUFFIX);
-        log.info("Done generating {} in {}", outputZone + OSM_SUFFIX, stopwatch);
+        if (sharedSink) {
+            serializeToZone(shapefiles, outputZone + OSM_SUFFIX);
+        } else {
+            serialize(shapefiles, this::serialize);
+
+            List<String> profileShapeFiles = shapefiles.stream().map(TomtomShapefile::getOutputFile).collect(toList());
+            osmMerger.merge(profileShapeFiles, outputZone + OSM_SUFFIX);
+        }
+        zoneTimer.update(stopwatch.elapsed(NANOSECONDS), NANOSECONDS);
+        log.info("Done generating {} in {}", outputZone + OSM_SUFFIX, stopwatch);
 
         stopwatch.reset();
         stopwatch.start();
 
-        splitter.run();
-        log.info("Done splitting {} in {}", outputZone, stopwatch);
+        List<String> splitFiles = splitter.run();
+        log.info("Done splitting {} in {}", outputZone, stopwatch);
+
+        return of(new Zone(outputZone + OSM_SUFFIX, splitFiles));
+    }
+
+    private void serialize(TomtomShapefile shapefile) {
+        log.info("Converting {}", shapefile.getClass().getSimpleName());
+        shapefile.serialize(outputZone, trackers, sortSettings, metadata);
+    }
+
+    /**
+     * Shapefiles write into the sorter of the zone file, which combines entities several shapefiles write as merging their files would.
+     * Shapefiles are converted one after the other whatever the number of shapefile threads: the sort is stable, so that the entity kept
+     * for an id written by several shapefiles is the one of the last shapefile, with the tags of the others, like a merge of their files.
+     * Each shapefile keeps its own id trackers, as when they are written to their own file.
+     */
+    private void serializeToZone(List<TomtomShapefile> shapefiles, String zoneFile) throws IOException {
+        // Releasing the zone closes the output as well, closing it again here covers a zone sink that fails to be built.
+        try (FileOutputStream output = new FileOutputStream(zoneFile)) {
+            BoundComputerAndSorterSink zone = new BoundComputerAndSorterSink(new PbfSink(output, true, metadata), sortSettings, true);
+            try {
+                SharedSink shared = new SharedSink(zone);
+                for (TomtomShapefile shapefile : shapefiles) {
+                    log.info("Converting {}", shapefile.getClass().getSimpleName());
+                    shapefile.serialize(shared, trackers, registry);
+                }
+                zone.complete();
+            } finally {
+                zone.release();
+            }
+        }
+    }
+
+    private void serialize(List<TomtomShapefile> shapefiles, Consumer<TomtomShapefile> serializer) {
+        if (shapefileThreads > 1) {
+            serializeInParallel(shapefiles, serializer);
+        } else {
+            shapefiles.forEach(serializer);
+        }
+    }
+
+    private void serializeInParallel(List<TomtomShapefile> shapefiles, Consumer<TomtomShapefile> serializer) {
+        BasicThreadFactory threadFactory = new BasicThreadFactory.Builder().namingPattern("mappy-Tomtom2Osm-%d").daemon(false).build();
+        ExecutorService executorService = newFixedThreadPool(Math.min(shapefileThreads, shapefiles.size()), threadFactory);
+        try {
+            List<Future<?>> futures = shapefiles.stream().map(shapefile -> executorService.submit(() -> serializer.accept(shapefile))).collect(toList());
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
 
-        return of(outputZone + OSM_SUFFIX);
+    /**
+     * The file of a generated zone and the files it was split into.
+     */
+    @Value
+    public static class Zone {
+        private final String file;
+        private final List<String> splitFiles;
     }
 
     private List<ClassInfo> shapefiles() throws IOException {
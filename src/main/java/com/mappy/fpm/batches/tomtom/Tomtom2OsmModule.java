@@ -2,6 +2,8 @@ package com.mappy.fpm.batches.tomtom;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.name.Names;
+import com.mappy.fpm.batches.utils.MetricsModule;
+import com.mappy.fpm.batches.utils.SortSettings;
 
 import java.io.File;
 
@@ -11,20 +13,32 @@ public class Tomtom2OsmModule extends AbstractModule {
     private final String output;
     private final String zone;
     private final String splitterFolder;
+    private final ConversionSettings settings;
 
     public Tomtom2OsmModule(String inputFolder, String output, String splitterFolder, String zone) {
+        this(inputFolder, output, splitterFolder, zone, ConversionSettings.DEFAULT);
+    }
+
+    public Tomtom2OsmModule(String inputFolder, String output, String splitterFolder, String zone, ConversionSettings settings) {
         this.inputFolder = inputFolder;
         this.output = output;
         this.splitterFolder = splitterFolder;
         this.zone = zone;
+        this.settings = settings;
     }
 
     @Override
     protected void configure() {
+        install(new MetricsModule(settings.getMetrics()));
         bindConstant().annotatedWith(Names.named("com.mappy.fpm.tomtom.input")).to(inputFolder);
         bindConstant().annotatedWith(Names.named("com.mappy.fpm.splitter.output")).to(splitterFolder);
         bindConstant().annotatedWith(Names.named("com.mappy.fpm.tomtom.zone")).to(zone);
+        bindConstant().annotatedWith(Names.named("com.mappy.fpm.tomtom.shapefile.threads")).to(settings.getShapefileThreads());
+        bindConstant().annotatedWith(Names.named("com.mappy.fpm.tomtom.shared.sink")).to(settings.isSharedSink());
         bindConstant().annotatedWith(Names.named("com.mappy.fpm.serializer.output")).to(output + File.separator + zone);
         bindConstant().annotatedWith(Names.named("com.mappy.fpm.serializer.username")).to("Tomtom");
+        bindConstant().annotatedWith(Names.named("com.mappy.fpm.serializer.trackers")).to(settings.getTrackers());
+        bindConstant().annotatedWith(Names.named("com.mappy.fpm.serializer.metadata")).to(settings.isMetadata());
+        bind(SortSettings.class).toInstance(settings.getSortSettings());
     }
 }
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
+import static org.apache.commons.io.FilenameUtils.getBaseName;
 
 public class TomtomFolder {
     private final String inputFolder;
@@ -36,4 +37,16 @@ public class TomtomFolder {
 
         return Stream.of(file.listFiles()).filter(f -> f.getName().startsWith(zone) && f.getName().endsWith("sm.shp")).map(f ->inputFolder + f.getName()).collect(toList());
     }
+
+    /**
+     * All the files a zone can read: its own shapefiles and dbf files, the sm shapefiles of {@link #getSMFiles()} and the tolls file.
+     */
+    public List<File> getZoneFiles() {
+        File file = new File(inputFolder);
+
+        return Stream.of(file.listFiles())
+                .filter(f -> f.getName().startsWith(zone + "_") || f.getName().startsWith(zone) && getBaseName(f.getName()).endsWith("sm") || f.getName().equals("tolls.json"))
+                .sorted()
+                .collect(toList());
+    }
 }
\ No newline at end of file
@@ -1,20 +1,26 @@
 package com.mappy.fpm.batches.tomtom;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Stopwatch;
 import com.mappy.fpm.batches.utils.*;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.jamel.dbf.DbfReader;
 import org.joda.time.DateTime;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static com.google.common.base.Throwables.propagate;
 import static com.mappy.fpm.batches.GenerateFullPbf.OSM_SUFFIX;
 import static java.io.File.separator;
+import static org.apache.commons.io.FilenameUtils.removeExtension;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 @Slf4j
 @Getter
@@ -28,47 +34,91 @@ public abstract class TomtomShapefile {
     }
 
     public void serialize(String outputDirectory) {
+        serialize(outputDirectory, IdTrackers.HEAP, SortSettings.DEFAULT, true);
+    }
+
+    public void serialize(String outputDirectory, IdTrackers trackers, SortSettings sortSettings, boolean metadata) {
 
         if (file.exists()) {
-            log.info("Opening {}", file.getAbsolutePath());
-            GeometrySerializer serializer = getSerializer(outputDirectory);
-            try (ShapefileIterator iterator = new ShapefileIterator(file, true)) {
-                Stopwatch stopwatch = Stopwatch.createStarted();
-                int counter = 0;
-                while (iterator.hasNext()) {
-                    serialize(serializer, iterator.next());
-                    counter++;
-                }
-                log(counter, stopwatch.elapsed(MILLISECONDS));
-                complete(serializer);
-
-            } finally {
-                try {
-                    serializer.close();
-                } catch (IOException e) {
-                    log.error("Unable to correctly close serializer.");
-                }
-            }
+            serialize(getSink(outputDirectory, sortSettings, metadata), trackers, sortSettings.getMetrics());
         }
         else {
             log.info("File not found : {}", file.getAbsolutePath());
         }
     }
 
+    /**
+     * Converts the features of the shapefile into a sink, which is completed and released once done.
+     */
+    public void serialize(Sink sink, IdTrackers trackers, MetricRegistry registry) {
+        log.info("Opening {}", file.getAbsolutePath());
+        TimedGeometrySerializer serializer = new TimedGeometrySerializer(new OsmosisSerializer(sink, "Tomtom", DateTime.now().toDate(), trackers, recordCount(), registry));
+        try (ShapefileIterator iterator = new ShapefileIterator(file, true)) {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            int counter = 0;
+            long readNanos = 0;
+            long convertNanos = 0;
+            long start = System.nanoTime();
+            while (iterator.hasNext()) {
+                Feature feature = iterator.next();
+                long read = System.nanoTime();
+                readNanos += read - start;
+                serialize(serializer, feature);
+                start = System.nanoTime();
+                convertNanos += start - read;
+                counter++;
+            }
+            log(counter, stopwatch.elapsed(MILLISECONDS));
+            // Only the serialization of the conversion loop is part of the conversion time, completion is a stage of its own.
+            long serializationNanos = serializer.getElapsedNanos();
+            long completion = System.nanoTime();
+            complete(serializer);
+            report(registry, readNanos, convertNanos, serializationNanos, System.nanoTime() - completion);
+
+        } finally {
+            try {
+                serializer.close();
+            } catch (IOException e) {
+                log.error("Unable to correctly close serializer.");
+            }
+        }
+    }
+
+    /**
+     * Tagging time is the conversion time not spent in the serializer.
+     */
+    private void report(MetricRegistry registry, long readNanos, long convertNanos, long serializationNanos, long completeNanos) {
+        String shapefile = getClass().getSimpleName();
+        registry.timer(name("shapefile", "read", shapefile)).update(readNanos, NANOSECONDS);
+        registry.timer(name("shapefile", "tagging", shapefile)).update(convertNanos - serializationNanos, NANOSECONDS);
+        registry.timer(name("shapefile", "serialization", shapefile)).update(serializationNanos, NANOSECONDS);
+        registry.timer(name("shapefile", "complete", shapefile)).update(completeNanos, NANOSECONDS);
+    }
+
     private static void log(int counter, long time) {
         log.info("Added {} object(s){}", counter, counter > 0 ? " in " + time + " ms at rate " + String.format("%.2f", counter * 1.0 / time) + " obj/ms" : "");
     }
 
-    private OsmosisSerializer getSerializer(String outputDirectory) {
+    private Sink getSink(String outputDirectory, SortSettings sortSettings, boolean metadata) {
         outputFile = outputDirectory + separator + getOutputFileName() + OSM_SUFFIX;
         try {
-            return new OsmosisSerializer(new BoundComputerAndSorterSink(new PbfSink(new FileOutputStream(outputFile), false)), "Tomtom", DateTime.now().toDate());
+            return new BoundComputerAndSorterSink(new PbfSink(new FileOutputStream(outputFile), false, metadata), sortSettings);
         } catch (FileNotFoundException e) {
             log.error("Unable to create output directory {}", outputDirectory, e);
             throw propagate(e);
         }
     }
 
+    private int recordCount() {
+        File dbf = new File(removeExtension(file.getPath()) + ".dbf");
+        if (!dbf.exists()) {
+            return 0;
+        }
+        try (DbfReader reader = new DbfReader(dbf)) {
+            return reader.getRecordCount();
+        }
+    }
+
     public abstract String getOutputFileName();
 
     public abstract void serialize(GeometrySerializer serializer, Feature feature);
@@ -1,19 +1,24 @@
 package com.mappy.fpm.batches.tomtom.dbf;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Stopwatch;
 import com.mappy.fpm.batches.tomtom.TomtomFolder;
 import lombok.extern.slf4j.Slf4j;
 import org.jamel.dbf.DbfReader;
 import org.jamel.dbf.structure.DbfRow;
 
+import javax.inject.Inject;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static java.util.Collections.emptyMap;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -21,11 +26,32 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 public class TomtomDbfReader {
 
     private final TomtomFolder folder;
+    private final List<Long> unreportedMillis = new ArrayList<>();
+    private MetricRegistry registry;
 
     public TomtomDbfReader(TomtomFolder folder) {
         this.folder = folder;
     }
 
+    /**
+     * Files read by the constructors of the readers, before Guice injects the registry, are reported once it is.
+     */
+    @Inject
+    public void reportTo(MetricRegistry registry) {
+        this.registry = registry;
+        unreportedMillis.forEach(this::report);
+        unreportedMillis.clear();
+    }
+
+    private void report(long millis) {
+        if (registry == null) {
+            unreportedMillis.add(millis);
+        }
+        else {
+            registry.timer(name("dbf", getClass().getSimpleName())).update(millis, MILLISECONDS);
+        }
+    }
+
     protected void readFile(String filename, Consumer<DbfRow> fun) {
         File file = new File(folder.getFile(filename));
 
@@ -46,6 +72,7 @@ public class TomtomDbfReader {
             }
             long time = stopwatch.elapsed(MILLISECONDS);
             stopwatch.stop();
+            report(time);
             log.info("Added {} object(s){}", counter, counter > 0 ? " in " + time + " ms at rate " + String.format("%.2f", counter * 1.0 / time) + " obj/ms" : "");
         }
     }
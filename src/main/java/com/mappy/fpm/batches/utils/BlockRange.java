@@ -0,0 +1,46 @@
+package com.mappy.fpm.batches.utils;
+
+import com.google.protobuf.ByteString;
+import lombok.Value;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Type and ids of the first and last entities of a block, stored in the index data of its blob header so that sorted files
+ * can be searched without decoding them. Other writers leave the index data empty, or store something else.
+ */
+@Value
+public class BlockRange {
+    private static final byte MAGIC = 'F';
+    private static final byte VERSION = 1;
+    private static final int SIZE = 3 + 2 * Long.BYTES;
+
+    private final EntityType type;
+    private final long firstId;
+    private final long lastId;
+
+    public ByteString toIndexData() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.put(MAGIC).put(VERSION).put((byte) type.ordinal()).putLong(firstId).putLong(lastId);
+        return ByteString.copyFrom(buffer.array());
+    }
+
+    /**
+     * @return The range stored in index data, null when there is none.
+     */
+    public static BlockRange parse(ByteString indexData) {
+        if (indexData == null || indexData.size() != SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = indexData.asReadOnlyByteBuffer();
+        if (buffer.get() != MAGIC || buffer.get() != VERSION) {
+            return null;
+        }
+        int type = buffer.get();
+        if (type < 0 || type >= EntityType.values().length) {
+            return null;
+        }
+        return new BlockRange(EntityType.values()[type], buffer.getLong(), buffer.getLong());
+    }
+}
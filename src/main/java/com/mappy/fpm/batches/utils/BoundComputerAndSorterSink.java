@@ -3,8 +3,6 @@ package com.mappy.fpm.batches.utils;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
 import org.openstreetmap.osmosis.core.domain.v0_6.Node;
-import org.openstreetmap.osmosis.core.sort.v0_6.EntityByTypeThenIdComparator;
-import org.openstreetmap.osmosis.core.sort.v0_6.EntityContainerComparator;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
 import org.openstreetmap.osmosis.osmbinary.Osmformat.HeaderBBox;
 import org.openstreetmap.osmosis.osmbinary.Osmformat.HeaderBBox.Builder;
@@ -22,9 +20,20 @@ public class BoundComputerAndSorterSink implements Sink {
     private final PbfSink pbf;
 
     public BoundComputerAndSorterSink(PbfSink pbf) {
+        this(pbf, SortSettings.DEFAULT);
+    }
+
+    public BoundComputerAndSorterSink(PbfSink pbf, SortSettings settings) {
+        this(pbf, settings, false);
+    }
+
+    /**
+     * @param combineDuplicates Whether entities with the same type and id are combined into one, when several serializers write into this sink.
+     */
+    public BoundComputerAndSorterSink(PbfSink pbf, SortSettings settings, boolean combineDuplicates) {
         this.pbf = pbf;
-        NoCompressionEntitySorter sorter = new NoCompressionEntitySorter(new EntityContainerComparator(new EntityByTypeThenIdComparator()));
-        sorter.setSink(pbf);
+        NoCompressionEntitySorter sorter = new NoCompressionEntitySorter(settings);
+        sorter.setSink(combineDuplicates ? new CombiningSink(pbf) : pbf);
         this.sorter = sorter;
     }
 
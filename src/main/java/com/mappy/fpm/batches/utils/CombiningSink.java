@@ -0,0 +1,55 @@
+package com.mappy.fpm.batches.utils;
+
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+import java.util.Map;
+
+/**
+ * Combines consecutive entities of a sorted stream with the same type and id, as merging the files of each shapefile does:
+ * the last entity is kept, with its tags first, then those of the previous ones, latest first.
+ */
+public class CombiningSink implements Sink {
+    private final Sink sink;
+    private EntityContainer pending;
+
+    public CombiningSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+        sink.initialize(metaData);
+    }
+
+    @Override
+    public void process(EntityContainer container) {
+        if (pending != null) {
+            Entity previous = pending.getEntity();
+            Entity entity = container.getEntity();
+            if (previous.getType() == entity.getType() && previous.getId() == entity.getId()) {
+                entity.getTags().addAll(previous.getTags());
+            }
+            else {
+                sink.process(pending);
+            }
+        }
+        pending = container;
+    }
+
+    @Override
+    public void complete() {
+        if (pending != null) {
+            sink.process(pending);
+            pending = null;
+        }
+        sink.complete();
+    }
+
+    @Override
+    public void release() {
+        pending = null;
+        sink.release();
+    }
+}
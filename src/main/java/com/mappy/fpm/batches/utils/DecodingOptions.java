@@ -0,0 +1,18 @@
+package com.mappy.fpm.batches.utils;
+
+import lombok.Value;
+import lombok.experimental.Wither;
+
+/**
+ * Parts of the entities a pass over a pbf file needs. Skipped parts are not decoded: nodes are dropped,
+ * tags left empty, and metadata (version, timestamp, user and changeset) left unset.
+ */
+@Value
+@Wither
+public class DecodingOptions {
+    public static final DecodingOptions ALL = new DecodingOptions(true, true, true);
+
+    private final boolean nodes;
+    private final boolean tags;
+    private final boolean metadata;
+}
@@ -0,0 +1,110 @@
+package com.mappy.fpm.batches.utils;
+
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorts entities by type then id, in the order of {@link org.openstreetmap.osmosis.core.sort.v0_6.EntityByTypeThenIdComparator},
+ * without comparing them: entities are partitioned by type, then each partition is ordered by a least significant digit
+ * radix sort of its (id, position) pairs. Like {@link List#sort}, the sort is stable.
+ */
+public final class EntityRadixSort {
+    private static final int BITS = 8;
+    private static final int RADIX = 1 << BITS;
+    private static final int MASK = RADIX - 1;
+    private static final int TYPES = EntityType.values().length;
+
+    private EntityRadixSort() {
+    }
+
+    public static void sort(List<EntityContainer> entities) {
+        int size = entities.size();
+
+        int[] starts = new int[TYPES + 1];
+        for (EntityContainer container : entities) {
+            starts[container.getEntity().getType().ordinal() + 1]++;
+        }
+        for (int type = 0; type < TYPES; type++) {
+            starts[type + 1] += starts[type];
+        }
+
+        // Flipping the sign bit makes the unsigned order of the keys the signed order of the ids.
+        long[] keys = new long[size];
+        int[] positions = new int[size];
+        int[] next = Arrays.copyOf(starts, TYPES);
+        for (int i = 0; i < size; i++) {
+            Entity entity = entities.get(i).getEntity();
+            int slot = next[entity.getType().ordinal()]++;
+            keys[slot] = entity.getId() ^ Long.MIN_VALUE;
+            positions[slot] = i;
+        }
+
+        long[] keyBuffer = new long[size];
+        int[] positionBuffer = new int[size];
+        for (int type = 0; type < TYPES; type++) {
+            radixSort(keys, positions, keyBuffer, positionBuffer, starts[type], starts[type + 1]);
+        }
+
+        EntityContainer[] sorted = new EntityContainer[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = entities.get(positions[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            entities.set(i, sorted[i]);
+        }
+    }
+
+    private static void radixSort(long[] keys, int[] positions, long[] keyBuffer, int[] positionBuffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        long[] sourceKeys = keys;
+        int[] sourcePositions = positions;
+        long[] targetKeys = keyBuffer;
+        int[] targetPositions = positionBuffer;
+        int[] offsets = new int[RADIX];
+
+        for (int shift = 0; shift < Long.SIZE; shift += BITS) {
+            Arrays.fill(offsets, 0);
+            for (int i = from; i < to; i++) {
+                offsets[digit(sourceKeys[i], shift)]++;
+            }
+            // Ids close to each other share most of their high digits, there is nothing to do for those.
+            if (offsets[digit(sourceKeys[from], shift)] == to - from) {
+                continue;
+            }
+
+            int offset = from;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int count = offsets[digit];
+                offsets[digit] = offset;
+                offset += count;
+            }
+            for (int i = from; i < to; i++) {
+                int slot = offsets[digit(sourceKeys[i], shift)]++;
+                targetKeys[slot] = sourceKeys[i];
+                targetPositions[slot] = sourcePositions[i];
+            }
+
+            long[] swapKeys = sourceKeys;
+            sourceKeys = targetKeys;
+            targetKeys = swapKeys;
+            int[] swapPositions = sourcePositions;
+            sourcePositions = targetPositions;
+            targetPositions = swapPositions;
+        }
+
+        if (sourceKeys != keys) {
+            System.arraycopy(sourceKeys, from, keys, from, to - from);
+            System.arraycopy(sourcePositions, from, positions, from, to - from);
+        }
+    }
+
+    private static int digit(long key, int shift) {
+        return (int) (key >>> shift) & MASK;
+    }
+}
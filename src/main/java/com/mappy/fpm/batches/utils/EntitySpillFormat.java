@@ -0,0 +1,332 @@
+package com.mappy.fpm.batches.utils;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.*;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compact encoding of the entities of a sorted run, much smaller and faster to read than the Osmosis object serialization.
+ * <p>
+ * Entities are written in blocks, each one starting with a dictionary of the strings (tag keys and values, roles, user names) it uses.
+ * Ids are delta encoded with the previous entity, way nodes and members with the previous one, as zigzag varints.
+ * Coordinates are delta encoded as fixed-point ints of 100 nanodegrees when it keeps them exact, written as raw doubles otherwise.
+ */
+public class EntitySpillFormat implements SpillFormat<EntityContainer> {
+    private static final int BLOCK_SIZE = 4096;
+    private static final double FIXED_POINT = 1e7;
+
+    private static final int NODE = 0;
+    private static final int WAY = 1;
+    private static final int RELATION = 2;
+    private static final int TYPE_MASK = 0b11;
+    private static final int FIXED_POINT_COORDINATES = 0b100;
+    private static final int HAS_TIMESTAMP = 0b1000;
+
+    private static final EntityType[] MEMBER_TYPES = EntityType.values();
+
+    @Override
+    public Writer<EntityContainer> newWriter(DataOutputStream output) {
+        return new BlockWriter(output);
+    }
+
+    @Override
+    public Reader<EntityContainer> newReader(DataInputStream input) {
+        return new BlockReader(input);
+    }
+
+    private static class BlockWriter implements Writer<EntityContainer> {
+        private final DataOutput output;
+        private final List<Entity> block = new ArrayList<>(BLOCK_SIZE);
+        private final Object2IntOpenHashMap<String> dictionary = new Object2IntOpenHashMap<>();
+        private long previousId;
+        private long previousTimestamp;
+        private long previousChangeset;
+        private long previousLatitude;
+        private long previousLongitude;
+
+        private BlockWriter(DataOutput output) {
+            this.output = output;
+            dictionary.defaultReturnValue(-1);
+        }
+
+        @Override
+        public void write(EntityContainer container) throws IOException {
+            block.add(container.getEntity());
+            if (block.size() == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!block.isEmpty()) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            dictionary.clear();
+            List<String> strings = newArrayList();
+            for (Entity entity : block) {
+                index(entity.getUser().getName(), strings);
+                for (Tag tag : entity.getTags()) {
+                    index(tag.getKey(), strings);
+                    index(tag.getValue(), strings);
+                }
+                if (entity instanceof Relation) {
+                    for (RelationMember member : ((Relation) entity).getMembers()) {
+                        index(member.getMemberRole(), strings);
+                    }
+                }
+            }
+
+            writeVarLong(output, block.size());
+            writeVarLong(output, strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(UTF_8);
+                writeVarLong(output, bytes.length);
+                output.write(bytes);
+            }
+
+            previousId = previousTimestamp = previousChangeset = previousLatitude = previousLongitude = 0;
+            for (Entity entity : block) {
+                writeEntity(entity);
+            }
+            block.clear();
+        }
+
+        private void index(String string, List<String> strings) {
+            if (dictionary.getInt(string) < 0) {
+                dictionary.put(string, strings.size());
+                strings.add(string);
+            }
+        }
+
+        private void writeEntity(Entity entity) throws IOException {
+            int flags;
+            long latitude = 0;
+            long longitude = 0;
+            if (entity instanceof Node) {
+                Node node = (Node) entity;
+                flags = NODE;
+                latitude = Math.round(node.getLatitude() * FIXED_POINT);
+                longitude = Math.round(node.getLongitude() * FIXED_POINT);
+                if (latitude / FIXED_POINT == node.getLatitude() && longitude / FIXED_POINT == node.getLongitude()) {
+                    flags |= FIXED_POINT_COORDINATES;
+                }
+            }
+            else if (entity instanceof Way) {
+                flags = WAY;
+            }
+            else if (entity instanceof Relation) {
+                flags = RELATION;
+            }
+            else {
+                throw new IllegalArgumentException("Unsupported entity " + entity.getType());
+            }
+            Date timestamp = entity.getTimestamp();
+            if (timestamp != null) {
+                flags |= HAS_TIMESTAMP;
+            }
+            output.writeByte(flags);
+
+            writeSignedVarLong(output, entity.getId() - previousId);
+            previousId = entity.getId();
+            writeVarLong(output, entity.getVersion());
+            if (timestamp != null) {
+                writeSignedVarLong(output, timestamp.getTime() - previousTimestamp);
+                previousTimestamp = timestamp.getTime();
+            }
+            writeSignedVarLong(output, entity.getChangesetId() - previousChangeset);
+            previousChangeset = entity.getChangesetId();
+            writeSignedVarLong(output, entity.getUser().getId());
+            writeVarLong(output, dictionary.getInt(entity.getUser().getName()));
+
+            Collection<Tag> tags = entity.getTags();
+            writeVarLong(output, tags.size());
+            for (Tag tag : tags) {
+                writeVarLong(output, dictionary.getInt(tag.getKey()));
+                writeVarLong(output, dictionary.getInt(tag.getValue()));
+            }
+
+            switch (flags & TYPE_MASK) {
+                case NODE:
+                    Node node = (Node) entity;
+                    if ((flags & FIXED_POINT_COORDINATES) != 0) {
+                        writeSignedVarLong(output, latitude - previousLatitude);
+                        writeSignedVarLong(output, longitude - previousLongitude);
+                        previousLatitude = latitude;
+                        previousLongitude = longitude;
+                    }
+                    else {
+                        output.writeDouble(node.getLatitude());
+                        output.writeDouble(node.getLongitude());
+                    }
+                    break;
+                case WAY:
+                    List<WayNode> wayNodes = ((Way) entity).getWayNodes();
+                    writeVarLong(output, wayNodes.size());
+                    long previousNode = entity.getId();
+                    for (WayNode wayNode : wayNodes) {
+                        writeSignedVarLong(output, wayNode.getNodeId() - previousNode);
+                        previousNode = wayNode.getNodeId();
+                    }
+                    break;
+                default:
+                    List<RelationMember> members = ((Relation) entity).getMembers();
+                    writeVarLong(output, members.size());
+                    long previousMember = entity.getId();
+                    for (RelationMember member : members) {
+                        output.writeByte(member.getMemberType().ordinal());
+                        writeSignedVarLong(output, member.getMemberId() - previousMember);
+                        previousMember = member.getMemberId();
+                        writeVarLong(output, dictionary.getInt(member.getMemberRole()));
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static class BlockReader implements Reader<EntityContainer> {
+        private final DataInput input;
+        private String[] dictionary;
+        private int remaining;
+        private long previousId;
+        private long previousTimestamp;
+        private long previousChangeset;
+        private long previousLatitude;
+        private long previousLongitude;
+        private Date date;
+        private OsmUser user;
+
+        private BlockReader(DataInput input) {
+            this.input = input;
+        }
+
+        @Override
+        public EntityContainer read() throws IOException {
+            if (remaining == 0) {
+                readBlockHeader();
+            }
+            remaining--;
+
+            int flags = input.readUnsignedByte();
+            long id = previousId + readSignedVarLong(input);
+            previousId = id;
+            int version = (int) readVarLong(input);
+            Date timestamp = null;
+            if ((flags & HAS_TIMESTAMP) != 0) {
+                previousTimestamp += readSignedVarLong(input);
+                // Entities of a run mostly share the same date and user, they are shared as well once read.
+                if (date == null || date.getTime() != previousTimestamp) {
+                    date = new Date(previousTimestamp);
+                }
+                timestamp = date;
+            }
+            previousChangeset += readSignedVarLong(input);
+            int userId = (int) readSignedVarLong(input);
+            String userName = dictionary[(int) readVarLong(input)];
+            if (user == null || user.getId() != userId || !user.getName().equals(userName)) {
+                user = userId == OsmUser.NONE.getId() ? OsmUser.NONE : new OsmUser(userId, userName);
+            }
+
+            int tagCount = (int) readVarLong(input);
+            List<Tag> tags = new ArrayList<>(tagCount);
+            for (int i = 0; i < tagCount; i++) {
+                tags.add(new Tag(dictionary[(int) readVarLong(input)], dictionary[(int) readVarLong(input)]));
+            }
+            CommonEntityData data = new CommonEntityData(id, version, timestamp, user, previousChangeset, tags);
+
+            switch (flags & TYPE_MASK) {
+                case NODE:
+                    double latitude;
+                    double longitude;
+                    if ((flags & FIXED_POINT_COORDINATES) != 0) {
+                        previousLatitude += readSignedVarLong(input);
+                        previousLongitude += readSignedVarLong(input);
+                        latitude = previousLatitude / FIXED_POINT;
+                        longitude = previousLongitude / FIXED_POINT;
+                    }
+                    else {
+                        latitude = input.readDouble();
+                        longitude = input.readDouble();
+                    }
+                    return new NodeContainer(new Node(data, latitude, longitude));
+                case WAY:
+                    int nodeCount = (int) readVarLong(input);
+                    List<WayNode> wayNodes = new ArrayList<>(nodeCount);
+                    long previousNode = id;
+                    for (int i = 0; i < nodeCount; i++) {
+                        previousNode += readSignedVarLong(input);
+                        wayNodes.add(new WayNode(previousNode));
+                    }
+                    return new WayContainer(new Way(data, wayNodes));
+                default:
+                    int memberCount = (int) readVarLong(input);
+                    List<RelationMember> members = new ArrayList<>(memberCount);
+                    long previousMember = id;
+                    for (int i = 0; i < memberCount; i++) {
+                        EntityType type = MEMBER_TYPES[input.readUnsignedByte()];
+                        previousMember += readSignedVarLong(input);
+                        members.add(new RelationMember(previousMember, type, dictionary[(int) readVarLong(input)]));
+                    }
+                    return new RelationContainer(new Relation(data, members));
+            }
+        }
+
+        private void readBlockHeader() throws IOException {
+            remaining = (int) readVarLong(input);
+            dictionary = new String[(int) readVarLong(input)];
+            for (int i = 0; i < dictionary.length; i++) {
+                byte[] bytes = new byte[(int) readVarLong(input)];
+                input.readFully(bytes);
+                dictionary[i] = new String(bytes, UTF_8);
+            }
+            previousId = previousTimestamp = previousChangeset = previousLatitude = previousLongitude = 0;
+        }
+    }
+
+    static void writeVarLong(DataOutput output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    static void writeSignedVarLong(DataOutput output, long value) throws IOException {
+        writeVarLong(output, value << 1 ^ value >> 63);
+    }
+
+    static long readVarLong(DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    static long readSignedVarLong(DataInput input) throws IOException {
+        long value = readVarLong(input);
+        return value >>> 1 ^ -(value & 1);
+    }
+}
@@ -2,93 +2,164 @@ package com.mappy.fpm.batches.utils;
 
 //This software is released into the Public Domain.  See copying.txt for details.
 
+import com.codahale.metrics.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.openstreetmap.osmosis.core.lifecycle.Releasable;
 import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
-import org.openstreetmap.osmosis.core.store.ChunkedObjectStore;
-import org.openstreetmap.osmosis.core.store.ObjectSerializationFactory;
-import org.openstreetmap.osmosis.core.store.Storeable;
+import org.openstreetmap.osmosis.core.store.ReleasableAdaptorForIterator;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.Lists.newArrayList;
-
-public class FileBasedSort<T extends Storeable> implements Releasable {
-    private static final int MAX_MEMORY_SORT_COUNT = 16384;
-
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * Sorts values in memory as long as they fit in the memory budget of the settings.
+ * Beyond, sorted runs are spilled to the spill directories by a background thread while values keep being added,
+ * and merged back when iterating. When there are more runs than the maximum fan-in, groups of runs are first merged
+ * into bigger runs level by level, so that the final merge reads at most that many runs.
+ */
+@Slf4j
+public class FileBasedSort<T> implements Releasable {
+    private static final AtomicInteger NEXT_DIRECTORY = new AtomicInteger();
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final ExecutorService SPILL_EXECUTOR = newCachedThreadPool(new BasicThreadFactory.Builder().namingPattern("mappy-FileBasedSort-%d").daemon(true).build());
+
+    private final SpillFormat<T> format;
     private final Comparator<T> comparator;
-    private final ChunkedObjectStore<T> chunkedEntityStore;
-    private final List<T> addBuffer;
+    private final Consumer<List<T>> bufferSorter;
+    private final ToLongFunction<T> weigher;
+    private final SortSettings settings;
+    private final List<SortRun<T>> runs = newArrayList();
+    private final Timer flushTimer;
+    private final Timer mergeTimer;
+    private final Timer waitTimer;
+    private List<T> addBuffer = new ArrayList<>();
+    private long bufferedBytes;
+    private Future<SortRun<T>> pendingRun;
+
+    public FileBasedSort(SpillFormat<T> format, Comparator<T> comparator, ToLongFunction<T> weigher, SortSettings settings) {
+        this(format, comparator, values -> values.sort(comparator), weigher, settings);
+    }
 
-    public FileBasedSort(ObjectSerializationFactory serializationFactory, Comparator<T> comparator) {
+    /**
+     * @param bufferSorter Sorts buffered values in the order of the comparator, which is still used to merge the runs.
+     */
+    public FileBasedSort(SpillFormat<T> format, Comparator<T> comparator, Consumer<List<T>> bufferSorter, ToLongFunction<T> weigher, SortSettings settings) {
+        this.format = format;
         this.comparator = comparator;
-        chunkedEntityStore = new ChunkedObjectStore<>(serializationFactory, "emta", "idx", false);
-        addBuffer = new ArrayList<>(MAX_MEMORY_SORT_COUNT);
+        this.bufferSorter = bufferSorter;
+        this.weigher = weigher;
+        this.settings = settings;
+        flushTimer = settings.getMetrics().timer(name("sort", "flush"));
+        mergeTimer = settings.getMetrics().timer(name("sort", "merge"));
+        waitTimer = settings.getMetrics().timer(name("sort", "wait"));
+        checkArgument(settings.getMaxFanIn() >= 2, "Merging requires a fan-in of at least 2, got %s", settings.getMaxFanIn());
     }
 
     /**
-     * Sorts the data currently in the add buffer, writes it to the object store, and clears the
-     * buffer.
+     * Hands the add buffer over to a background thread that sorts it and writes it to a new run, and starts a new buffer.
+     * Waits for the previous run to be written first, so that at most two buffers are in memory.
      */
     private void flushAddBuffer() {
-        if (addBuffer.size() >= 0) {
-            // Sort the chunk prior to writing.
-            addBuffer.sort(comparator);
+        awaitPendingRun();
 
-            // Write all entities in the buffer to entity storage.
-            for (T entity : addBuffer) {
-                chunkedEntityStore.add(entity);
-            }
+        List<T> buffer = addBuffer;
+        long bytes = bufferedBytes;
+        File directory = nextSpillDirectory();
+        pendingRun = SPILL_EXECUTOR.submit(() -> spill(buffer, bytes, directory));
 
-            addBuffer.clear();
+        addBuffer = new ArrayList<>(buffer.size());
+        bufferedBytes = 0;
+    }
+
+    private SortRun<T> spill(List<T> buffer, long bytes, File directory) {
+        Timer.Context context = flushTimer.time();
+
+        bufferSorter.accept(buffer);
+        SortRun<T> run = SortRun.write(directory, format, buffer.iterator(), MIN_BUFFER_SIZE);
+        log.debug("Spilled {} values ({} Mo estimated)", buffer.size(), bytes >> 20);
 
-            // Close the chunk in the underlying data store so that it can be read separately.
-            chunkedEntityStore.closeChunk();
+        context.stop();
+        return run;
+    }
+
+    /**
+     * Waits for the run being written in background, if any, and rethrows its failure.
+     */
+    private void awaitPendingRun() {
+        if (pendingRun != null) {
+            Timer.Context context = waitTimer.time();
+            try {
+                runs.add(pendingRun.get());
+            }
+            catch (ExecutionException e) {
+                throw propagate(e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw propagate(e);
+            }
+            finally {
+                pendingRun = null;
+                context.stop();
+            }
         }
     }
 
     public void add(T value) {
-        // Add the new data entity to the add buffer.
         addBuffer.add(value);
+        bufferedBytes += weigher.applyAsLong(value);
 
-        // If the add buffer is full, it must be sorted and written to entity
-        // storage.
-        if (addBuffer.size() >= MAX_MEMORY_SORT_COUNT) {
+        // The budget is shared between the buffer being filled and the one being spilled.
+        if (bufferedBytes >= settings.getMemoryBudget() / 2) {
             flushAddBuffer();
         }
     }
 
     /**
-     * Sorts the specified sub-section of the overall storage contents. This result list is not
-     * backed by a file and should be persisted prior to being incorporated into a higher level
-     * merge operation.
+     * Sorts and returns the contents of the sorter. Values still in memory are merged with the spilled runs without being written.
+     *
+     * @return An iterator providing access to the sorted entities.
      */
-    private ReleasableIterator<T> iterate(long chunkCount) {
-        List<ReleasableIterator<T>> sources;
-
-        sources = newArrayList();
+    public ReleasableIterator<T> iterate() {
+        awaitPendingRun();
+        int bufferSize = mergeBufferSize();
+        mergeRunsByLevel(bufferSize);
+
+        bufferSorter.accept(addBuffer);
+        ReleasableIterator<T> inMemory = new ReleasableAdaptorForIterator<>(addBuffer.iterator());
+        if (runs.isEmpty()) {
+            return inMemory;
+        }
 
+        List<ReleasableIterator<T>> sources = newArrayList();
         try {
-            PriorityQueueMergingIterator<T> mergingIterator;
-
-            // If we are down to a small number of entities, we retrieve each
-            // source from file.
-            // Otherwise we recurse and split the number of entities down into
-            // smaller chunks.
-            for (int i = 0; i < chunkCount; i++) {
-                sources.add(chunkedEntityStore.iterate(i));
+            for (SortRun<T> run : runs) {
+                sources.add(run.iterate(format, bufferSize));
             }
-
-            // Create a merging iterator to merge all of the sources.
-            mergingIterator = new PriorityQueueMergingIterator<>(sources, comparator);
+            sources.add(inMemory);
 
             // The merging iterator owns the sources now, so we clear our copy
             // of them to prevent them being released on method exit.
+            LoserTreeMergingIterator<T> mergingIterator = new LoserTreeMergingIterator<>(sources, comparator);
             sources.clear();
-
             return mergingIterator;
-
         }
         finally {
             for (ReleasableIterator<T> source : sources) {
@@ -98,20 +169,80 @@ public class FileBasedSort<T extends Storeable> implements Releasable {
     }
 
     /**
-     * Sorts and returns the contents of the sorter.
-     * 
-     * @return An iterator providing access to the sorted entities.
+     * Merges consecutive groups of runs, each into a run that takes the place of the group, level after level: each level reads and
+     * writes every value once. The last level only merges what is needed for the remaining runs and the in memory values to fit in
+     * the final merge. Equal values keep the order they were added in, since runs keep their order and merges break ties by run order.
      */
-    public ReleasableIterator<T> iterate() {
-        flushAddBuffer();
+    private void mergeRunsByLevel(int bufferSize) {
+        int maxFanIn = settings.getMaxFanIn();
+        while (runs.size() >= maxFanIn) {
+            for (int start = 0; start < runs.size() - 1 && runs.size() >= maxFanIn; start++) {
+                mergeRuns(start, Math.min(maxFanIn, Math.min(runs.size() - start, runs.size() - maxFanIn + 2)), bufferSize);
+            }
+        }
+    }
+
+    /**
+     * Merges the given number of runs from the given index into a new run, which takes their place.
+     */
+    private void mergeRuns(int start, int count, int bufferSize) {
+        Timer.Context context = mergeTimer.time();
+
+        List<SortRun<T>> group = runs.subList(start, start + count);
+        List<ReleasableIterator<T>> sources = newArrayList();
+        SortRun<T> merged;
+        try {
+            for (SortRun<T> run : group) {
+                sources.add(run.iterate(format, bufferSize));
+            }
+            merged = SortRun.write(nextSpillDirectory(), format, new LoserTreeMergingIterator<>(sources, comparator), bufferSize);
+        }
+        finally {
+            for (ReleasableIterator<T> source : sources) {
+                source.release();
+            }
+        }
+        log.debug("Merged {} runs, {} left", count, runs.size() - count + 1);
+
+        group.forEach(SortRun::delete);
+        group.clear();
+        runs.add(start, merged);
 
-        return iterate(chunkedEntityStore.getChunkCount());
+        context.stop();
+    }
+
+    /**
+     * The runs being merged share the half of the budget that is not used by the add buffer.
+     */
+    private int mergeBufferSize() {
+        long share = settings.getMemoryBudget() / 2 / (settings.getMaxFanIn() + 1);
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, share));
     }
 
     /**
      * {@inheritDoc}
      */
     public void release() {
-        chunkedEntityStore.release();
+        if (pendingRun != null) {
+            // The run may still be written, wait for it so that its file gets deleted too.
+            try {
+                runs.add(getUninterruptibly(pendingRun));
+            }
+            catch (ExecutionException e) {
+                log.debug("Ignoring failed spill on release", e.getCause());
+            }
+            pendingRun = null;
+        }
+        runs.forEach(SortRun::delete);
+        runs.clear();
+        addBuffer = new ArrayList<>();
+        bufferedBytes = 0;
+    }
+
+    private File nextSpillDirectory() {
+        List<File> directories = settings.getSpillDirectories();
+        File directory = directories.get(Math.floorMod(NEXT_DIRECTORY.getAndIncrement(), directories.size()));
+        directory.mkdirs();
+        return directory;
     }
 }
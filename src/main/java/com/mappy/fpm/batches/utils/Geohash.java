@@ -2,22 +2,28 @@ package com.mappy.fpm.batches.utils;
 
 import com.github.davidmoten.geo.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 public class Geohash {
     private static final String symbols = "psc8b9fzejv0uhx1nm5rgt4yk3d627qw";
+    private static final String base32 = "0123456789bcdefghjkmnpqrstuvwxyz";
     private static final int size = symbols.length();
     private static final int[] lookup = indexByLetter(symbols);
+    private static final int[] symbolByBase32 = permutation(base32, symbols);
+    private static final int[] base32BySymbol = permutation(symbols, base32);
+    private static final int BITS = 55;
+    private static final int LONGITUDE_BITS = 28;
+    private static final int LATITUDE_BITS = 27;
 
-    // GeoHashUtils.stringEncode() returns 11 letters.
-    // decode() encode letters to long with 5 bit per letter.
-    // A geohash takes 55 bits, we use 3 bits to encode the layer
+    // A geohash of 11 letters takes 55 bits, each letter being stored on 5 bits as its index in symbols.
+    // We use the 3 next bits to encode the layer.
     public static long encodeGeohash(int layer, double x, double y) {
-        String stringEncode = GeoHash.encodeHash(y, x, 11);
-        long decode = encodeString(stringEncode);
+        checkArgument(y >= -90 && y <= 90, "latitude must be between -90 and 90 inclusive");
         checkState(layer >= 0 && layer < 8);
+        long bits = spread(cell(to180(x), 180.0, LONGITUDE_BITS)) | spread(cell(y, 90.0, LATITUDE_BITS)) << 1;
         long mask = (long) layer << 55;
-        return decode | mask;
+        return permute(bits, symbolByBase32) | mask;
     }
 
     public static long encodeString(String s) {
@@ -49,7 +55,83 @@ public class Geohash {
     }
 
     public static LatLong decodeGeohash(long geohash) {
-        return GeoHash.decodeHash(decodeString(withoutLayer(geohash)));
+        return new LatLong(decodeLatitude(geohash), decodeLongitude(geohash));
+    }
+
+    /**
+     * Center of the geohash cell, as GeoHash.decodeHash() computes it for the 11 letters of the geohash.
+     */
+    public static double decodeLatitude(long geohash) {
+        return center(compact(permute(withoutLayer(geohash), base32BySymbol) >>> 1), 90.0, LATITUDE_BITS);
+    }
+
+    public static double decodeLongitude(long geohash) {
+        return center(compact(permute(withoutLayer(geohash), base32BySymbol)), 180.0, LONGITUDE_BITS);
+    }
+
+    // GeoHash bisects [-bound, bound] once per bit: the bits of a coordinate are the index of its cell among 2^bits cells.
+    // Cell bounds are exact doubles, so the index computed with a division is corrected with exact comparisons
+    // to get the same cell as the bisection when the coordinate is close to a bound.
+    private static long cell(double value, double bound, int bits) {
+        long count = 1L << bits;
+        double width = 2 * bound / count;
+        long cell = Math.max(0, Math.min(count - 1, (long) ((value + bound) / width)));
+        while (cell > 0 && value < -bound + cell * width) {
+            cell--;
+        }
+        while (cell < count - 1 && value >= -bound + (cell + 1) * width) {
+            cell++;
+        }
+        return cell;
+    }
+
+    private static double center(long cell, double bound, int bits) {
+        return -bound + (2 * cell + 1) * (bound / (1L << bits));
+    }
+
+    // Geohash bits alternate longitude and latitude, starting with longitude: the top bit of the 55 bits is a longitude bit.
+    private static long spread(long value) {
+        value = (value | value << 16) & 0x0000FFFF0000FFFFL;
+        value = (value | value << 8) & 0x00FF00FF00FF00FFL;
+        value = (value | value << 4) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | value << 2) & 0x3333333333333333L;
+        return (value | value << 1) & 0x5555555555555555L;
+    }
+
+    private static long compact(long value) {
+        value &= 0x5555555555555555L;
+        value = (value | value >>> 1) & 0x3333333333333333L;
+        value = (value | value >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | value >>> 4) & 0x00FF00FF00FF00FFL;
+        value = (value | value >>> 8) & 0x0000FFFF0000FFFFL;
+        return (value | value >>> 16) & 0x00000000FFFFFFFFL;
+    }
+
+    private static long permute(long bits, int[] permutation) {
+        long result = 0;
+        for (int shift = BITS - 5; shift >= 0; shift -= 5) {
+            result = result << 5 | permutation[(int) (bits >>> shift) & 0b11111];
+        }
+        return result;
+    }
+
+    // Same normalization as GeoHash.encodeHash()
+    private static double to180(double longitude) {
+        if (longitude < 0) {
+            return -to180(Math.abs(longitude));
+        }
+        if (longitude > 180) {
+            return longitude - Math.round(Math.floor((longitude + 180) / 360.0)) * 360;
+        }
+        return longitude;
+    }
+
+    private static int[] permutation(String from, String to) {
+        int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = to.indexOf(from.charAt(i));
+        }
+        return permutation;
     }
 
     private static int[] indexByLetter(String symbols) {
@@ -60,4 +142,4 @@ public class Geohash {
         }
         return lookup;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package com.mappy.fpm.batches.utils;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * Where OsmosisSerializer keeps the ids it already wrote.
+ */
+public enum IdTrackers {
+    HEAP {
+        @Override
+        public LongSet create(int expectedSize) {
+            return new LongOpenHashSet(expectedSize);
+        }
+
+        @Override
+        public void release(LongSet tracker) {
+        }
+    },
+    OFF_HEAP {
+        @Override
+        public LongSet create(int expectedSize) {
+            return new OffHeapLongSet(expectedSize);
+        }
+
+        @Override
+        public void release(LongSet tracker) {
+            ((OffHeapLongSet) tracker).release();
+        }
+    };
+
+    public abstract LongSet create(int expectedSize);
+
+    /**
+     * Frees a tracker created by {@link #create(int)} once its serializer is done with it.
+     */
+    public abstract void release(LongSet tracker);
+}
@@ -0,0 +1,92 @@
+package com.mappy.fpm.batches.utils;
+
+import it.unimi.dsi.fastutil.longs.LongArrays;
+
+import java.util.Arrays;
+
+/**
+ * Multimap of primitive longs, to hold millions of pairs without boxing them: pairs are appended to two arrays, which are
+ * sorted and stripped of duplicate pairs on the first lookup following additions. Lookups are binary searches.
+ */
+public class LongMultimap {
+    private static final long[] NO_VALUES = new long[0];
+
+    private long[] keys = new long[16];
+    private long[] values = new long[16];
+    private int size;
+    private boolean sorted = true;
+
+    public void put(long key, long value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        sorted = false;
+    }
+
+    public boolean containsKey(long key) {
+        return first(key) >= 0;
+    }
+
+    /**
+     * @return The values of the key in increasing order, each once. The array is a copy.
+     */
+    public long[] get(long key) {
+        int first = first(key);
+        if (first < 0) {
+            return NO_VALUES;
+        }
+        int last = first;
+        while (last < size && keys[last] == key) {
+            last++;
+        }
+        return Arrays.copyOfRange(values, first, last);
+    }
+
+    /**
+     * @return The number of distinct pairs.
+     */
+    public int size() {
+        sort();
+        return size;
+    }
+
+    /**
+     * @return The index of the first pair of the key, negative when there is none.
+     */
+    private int first(long key) {
+        sort();
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < key) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low < size && keys[low] == key ? low : -1;
+    }
+
+    private void sort() {
+        if (sorted) {
+            return;
+        }
+        LongArrays.radixSort(keys, values, 0, size);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || keys[i] != keys[distinct - 1] || values[i] != values[distinct - 1]) {
+                keys[distinct] = keys[i];
+                values[distinct] = values[i];
+                distinct++;
+            }
+        }
+        size = distinct;
+        sorted = true;
+    }
+}
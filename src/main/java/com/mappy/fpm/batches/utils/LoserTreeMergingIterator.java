@@ -0,0 +1,180 @@
+package com.mappy.fpm.batches.utils;
+
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BinaryOperator;
+
+/**
+ * Merges sorted sources into a single sorted iterator with a tournament tree of losers: each value costs about log2(sources)
+ * comparisons, and nothing is allocated per value. Equal values are returned in source order.
+ * Sources are released as soon as they are exhausted, remaining ones when this iterator is released.
+ */
+public class LoserTreeMergingIterator<T> implements ReleasableIterator<T> {
+    private final List<Iterator<T>> sources;
+    private final Comparator<? super T> comparator;
+    private final BinaryOperator<T> combiner;
+    private final Object[] heads;
+    private final int[] tree;
+    private boolean initialized;
+
+    public LoserTreeMergingIterator(List<? extends Iterator<T>> sources, Comparator<? super T> comparator) {
+        this(sources, comparator, null);
+    }
+
+    /**
+     * @param combiner Combines equal values of different sources into one. It is given the value combined so far
+     *                 and the one of the next source, in source order.
+     */
+    public LoserTreeMergingIterator(List<? extends Iterator<T>> sources, Comparator<? super T> comparator, BinaryOperator<T> combiner) {
+        this.sources = new ArrayList<>(sources);
+        this.comparator = comparator;
+        this.combiner = combiner;
+        this.heads = new Object[sources.size()];
+        this.tree = new int[Math.max(1, sources.size())];
+    }
+
+    /**
+     * Reads the first value of each source and plays the initial tournament: internal node n of the tree has children
+     * 2n and 2n + 1, leaves are at size + source. The overall winner is kept in tree[0].
+     */
+    private void initialize() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+
+        int size = heads.length;
+        for (int source = 0; source < size; source++) {
+            heads[source] = advance(source);
+        }
+
+        int[] winners = new int[2 * size];
+        for (int source = 0; source < size; source++) {
+            winners[size + source] = source;
+        }
+        for (int node = size - 1; node > 0; node--) {
+            int left = winners[2 * node];
+            int right = winners[2 * node + 1];
+            boolean rightWins = beats(right, left);
+            winners[node] = rightWins ? right : left;
+            tree[node] = rightWins ? left : right;
+        }
+        tree[0] = size > 1 ? winners[1] : 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        initialize();
+
+        return heads.length > 0 && heads[tree[0]] != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        int winner = tree[0];
+        T result = head(winner);
+        pop(winner);
+
+        if (combiner != null) {
+            // Equal values come out in source order, a lower source means the next value of an already combined source.
+            while (heads[tree[0]] != null && tree[0] > winner && comparator.compare(head(tree[0]), result) == 0) {
+                winner = tree[0];
+                result = combiner.apply(result, head(winner));
+                pop(winner);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The source of the value {@link #next()} returns first, when there is one.
+     */
+    public int nextSource() {
+        initialize();
+
+        return tree[0];
+    }
+
+    /**
+     * @return The smallest value of the sources other than {@link #nextSource()}, null when they are all exhausted.
+     * It lost its last match against the winner, so it is one of the losers along the path of the winner.
+     */
+    public T runnerUp() {
+        initialize();
+
+        int best = -1;
+        for (int node = (tree[0] + heads.length) >> 1; node > 0; node >>= 1) {
+            int loser = tree[node];
+            if (heads[loser] != null && (best < 0 || beats(loser, best))) {
+                best = loser;
+            }
+        }
+        return best < 0 ? null : head(best);
+    }
+
+    private void pop(int source) {
+        heads[source] = advance(source);
+
+        int winner = source;
+        for (int node = (source + heads.length) >> 1; node > 0; node >>= 1) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    private boolean beats(int source, int other) {
+        if (heads[source] == null) {
+            return false;
+        }
+        if (heads[other] == null) {
+            return true;
+        }
+        int compare = comparator.compare(head(source), head(other));
+        return compare < 0 || compare == 0 && source < other;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T head(int source) {
+        return (T) heads[source];
+    }
+
+    private T advance(int source) {
+        Iterator<T> iterator = sources.get(source);
+        if (iterator == null) {
+            return null;
+        }
+        if (iterator.hasNext()) {
+            return iterator.next();
+        }
+        release(source);
+        return null;
+    }
+
+    private void release(int source) {
+        Iterator<T> iterator = sources.set(source, null);
+        if (iterator instanceof Releasable) {
+            ((Releasable) iterator).release();
+        }
+    }
+
+    @Override
+    public void release() {
+        for (int source = 0; source < sources.size(); source++) {
+            release(source);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.mappy.fpm.batches.utils;
+
+import com.google.protobuf.CodedInputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.osmbinary.Fileformat.BlobHeader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Throwables.propagate;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Walks the blobs of a pbf file mapped in memory. Blobs are slices of the mapping, nothing is copied on the heap.
+ * Mappings are limited in size, so larger files are mapped one window after the other.
+ * Slices stay readable after the reader is released.
+ */
+@Slf4j
+public class MappedPbfReader implements Iterator<PbfBlob>, Releasable {
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private final File file;
+    private final long windowSize;
+    private final FileChannel channel;
+    private final long size;
+    private long limit;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public MappedPbfReader(File file) {
+        this(file, WINDOW_SIZE);
+    }
+
+    MappedPbfReader(File file, long windowSize) {
+        this.file = file;
+        this.windowSize = windowSize;
+        try {
+            channel = FileChannel.open(file.toPath(), READ);
+            size = channel.size();
+            limit = size;
+        }
+        catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < limit;
+    }
+
+    /**
+     * @return The position of the next blob in the file.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Moves to the blob starting at the given position, and stops before the blob starting at the given limit.
+     */
+    public void seek(long position, long limit) {
+        checkArgument(0 <= position && position <= limit && limit <= size, "Invalid range [%s, %s] of %s bytes", position, limit, size);
+        this.position = position;
+        this.limit = limit;
+    }
+
+    @Override
+    public PbfBlob next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            int headerSize = slice(position, 4).getInt();
+            if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                throw new OsmosisRuntimeException("Invalid blob header size " + headerSize + " at " + position + " in " + file);
+            }
+            BlobHeader header = BlobHeader.parseFrom(CodedInputStream.newInstance(slice(position + 4, headerSize)));
+            if (header.getDatasize() < 0 || header.getDatasize() > MAX_BLOB_SIZE) {
+                throw new OsmosisRuntimeException("Invalid blob size " + header.getDatasize() + " at " + position + " in " + file);
+            }
+            ByteBuffer data = slice(position + 4 + headerSize, header.getDatasize());
+            position += 4 + headerSize + header.getDatasize();
+            return new PbfBlob(header.getType(), data, header.hasIndexdata() ? header.getIndexdata() : null);
+        }
+        catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        if (offset + length > size) {
+            throw new OsmosisRuntimeException("Truncated pbf file " + file + ", " + length + " bytes expected at " + offset);
+        }
+        if (window == null || offset < windowStart || offset + length > windowStart + window.capacity()) {
+            windowStart = offset;
+            window = channel.map(READ_ONLY, offset, Math.min(Math.max(windowSize, length), size - offset));
+        }
+        ByteBuffer slice = window.duplicate();
+        slice.position((int) (offset - windowStart));
+        slice.limit(slice.position() + length);
+        return slice.slice();
+    }
+
+    @Override
+    public void release() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.warn("Unable to close {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.mappy.fpm.batches.utils;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.AbstractModule;
+import com.palominolabs.metrics.guice.MetricsInstrumentationModule;
+
+public class MetricsModule extends AbstractModule {
+    private final MetricRegistry registry;
+
+    public MetricsModule(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    protected void configure() {
+        bind(MetricRegistry.class).toInstance(registry);
+        install(new MetricsInstrumentationModule(registry));
+    }
+}
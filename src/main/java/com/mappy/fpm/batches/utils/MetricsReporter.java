@@ -0,0 +1,52 @@
+package com.mappy.fpm.batches.utils;
+
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.util.Optional;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Publishes the metrics of a generation over JMX and, when a directory is given, as CSV files written periodically.
+ */
+@Slf4j
+public class MetricsReporter {
+    private final JmxReporter jmxReporter;
+    private final Optional<CsvReporter> csvReporter;
+
+    private MetricsReporter(JmxReporter jmxReporter, Optional<CsvReporter> csvReporter) {
+        this.jmxReporter = jmxReporter;
+        this.csvReporter = csvReporter;
+    }
+
+    public static MetricsReporter start(MetricRegistry registry, Optional<String> csvDirectory, long periodInSeconds) {
+        JmxReporter jmxReporter = JmxReporter.forRegistry(registry).inDomain("com.mappy.fpm").convertDurationsTo(MILLISECONDS).build();
+        jmxReporter.start();
+
+        Optional<CsvReporter> csvReporter = csvDirectory.map(directory -> {
+            File folder = new File(directory);
+            folder.mkdirs();
+            log.info("Writing metrics to {} every {}s", folder.getAbsolutePath(), periodInSeconds);
+            CsvReporter reporter = CsvReporter.forRegistry(registry).convertDurationsTo(MILLISECONDS).build(folder);
+            reporter.start(periodInSeconds, SECONDS);
+            return reporter;
+        });
+        return new MetricsReporter(jmxReporter, csvReporter);
+    }
+
+    /**
+     * Stops the reporters, after a last CSV report so that short runs are reported too.
+     */
+    public void stop() {
+        csvReporter.ifPresent(reporter -> {
+            reporter.report();
+            reporter.stop();
+        });
+        jmxReporter.stop();
+    }
+}
@@ -1,20 +1,57 @@
 package com.mappy.fpm.batches.utils;
 
+import com.codahale.metrics.Timer;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
 import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
-import org.openstreetmap.osmosis.core.store.GenericObjectSerializationFactory;
+import org.openstreetmap.osmosis.core.sort.v0_6.EntityByTypeThenIdComparator;
+import org.openstreetmap.osmosis.core.sort.v0_6.EntityContainerComparator;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
 import org.openstreetmap.osmosis.core.task.v0_6.SinkSource;
 
 import java.util.Comparator;
 import java.util.Map;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
 public class NoCompressionEntitySorter implements SinkSource {
     private final FileBasedSort<EntityContainer> fileBasedSort;
+    private final Timer completeTimer;
     private Sink sink;
 
-    public NoCompressionEntitySorter(Comparator<EntityContainer> comparator) {
-        fileBasedSort = new FileBasedSort<>(new GenericObjectSerializationFactory(), comparator);
+    public NoCompressionEntitySorter(Comparator<EntityContainer> comparator, SortSettings settings) {
+        fileBasedSort = new FileBasedSort<>(new EntitySpillFormat(), comparator, NoCompressionEntitySorter::estimatedSize, settings);
+        completeTimer = settings.getMetrics().timer(name("sort", "complete"));
+    }
+
+    /**
+     * Sorts entities by type then id, with a radix sort instead of comparisons.
+     */
+    public NoCompressionEntitySorter(SortSettings settings) {
+        fileBasedSort = new FileBasedSort<>(
+                new EntitySpillFormat(),
+                new EntityContainerComparator(new EntityByTypeThenIdComparator()),
+                EntityRadixSort::sort,
+                NoCompressionEntitySorter::estimatedSize,
+                settings);
+        completeTimer = settings.getMetrics().timer(name("sort", "complete"));
+    }
+
+    /**
+     * Rough heap footprint of an entity, in bytes: containers, common data, tags, way nodes and members.
+     */
+    static long estimatedSize(EntityContainer container) {
+        Entity entity = container.getEntity();
+        long size = 160 + 64L * entity.getTags().size();
+        if (entity instanceof Way) {
+            size += 24L * ((Way) entity).getWayNodes().size();
+        }
+        else if (entity instanceof Relation) {
+            size += 40L * ((Relation) entity).getMembers().size();
+        }
+        return size;
     }
 
     public void initialize(Map<String, Object> metaData) {
@@ -32,7 +69,7 @@ public class NoCompressionEntitySorter implements SinkSource {
     public void complete() {
         ReleasableIterator<EntityContainer> iterator = null;
 
-        try {
+        try (Timer.Context ignored = completeTimer.time()) {
             iterator = fileBasedSort.iterate();
 
             while (iterator.hasNext()) {
@@ -0,0 +1,168 @@
+package com.mappy.fpm.batches.utils;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.AbstractLongIterator;
+import it.unimi.dsi.fastutil.longs.AbstractLongSet;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import sun.nio.ch.DirectBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.ByteBuffer.allocateDirect;
+import static java.nio.ByteOrder.nativeOrder;
+
+/**
+ * Set of longs kept in direct memory, in an open addressing table with linear probing, so that it does not weigh on the heap.
+ * Only supports additions, which is all id trackers need. Not thread safe.
+ * The memory is freed by {@link #release()} rather than left to the garbage collector, which only reclaims direct buffers
+ * when the heap itself is collected.
+ */
+public class OffHeapLongSet extends AbstractLongSet {
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final long FREE = 0;
+    // A direct buffer holds less than 2 Go, the largest power of two of longs that fits is 1 Go
+    private static final int MAX_CAPACITY = 1 << 27;
+
+    private ByteBuffer memory;
+    private LongBuffer table;
+    private int mask;
+    private int maxFill;
+    private int size;
+    private boolean containsFree;
+
+    public OffHeapLongSet(int expectedSize) {
+        allocate(HashCommon.arraySize(Math.max(expectedSize, 16), LOAD_FACTOR));
+    }
+
+    @Override
+    public boolean add(long value) {
+        checkState(table != null, "Tracker already released");
+        if (value == FREE) {
+            if (containsFree) {
+                return false;
+            }
+            containsFree = true;
+            size++;
+            return true;
+        }
+        int slot = (int) HashCommon.mix(value) & mask;
+        long current;
+        while ((current = table.get(slot)) != FREE) {
+            if (current == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table.put(slot, value);
+        if (++size >= maxFill) {
+            rehash(table.capacity() * 2);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(long value) {
+        checkState(table != null, "Tracker already released");
+        if (value == FREE) {
+            return containsFree;
+        }
+        int slot = (int) HashCommon.mix(value) & mask;
+        long current;
+        while ((current = table.get(slot)) != FREE) {
+            if (current == value) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public LongIterator iterator() {
+        checkState(table != null, "Tracker already released");
+        return new AbstractLongIterator() {
+            private int slot = -1;
+            private boolean free = containsFree;
+
+            {
+                advance();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return free || slot < table.capacity();
+            }
+
+            @Override
+            public long nextLong() {
+                if (free) {
+                    free = false;
+                    return FREE;
+                }
+                if (slot >= table.capacity()) {
+                    throw new NoSuchElementException();
+                }
+                long value = table.get(slot);
+                advance();
+                return value;
+            }
+
+            private void advance() {
+                do {
+                    slot++;
+                } while (slot < table.capacity() && table.get(slot) == FREE);
+            }
+        };
+    }
+
+    /**
+     * Frees the direct memory of the set, which cannot be used afterwards.
+     */
+    public void release() {
+        if (memory != null) {
+            free(memory);
+            memory = null;
+            table = null;
+            size = 0;
+            containsFree = false;
+        }
+    }
+
+    private void rehash(int capacity) {
+        ByteBuffer previousMemory = memory;
+        LongBuffer previous = table;
+        allocate(capacity);
+        for (int i = 0; i < previous.capacity(); i++) {
+            long value = previous.get(i);
+            if (value != FREE) {
+                int slot = (int) HashCommon.mix(value) & mask;
+                while (table.get(slot) != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                table.put(slot, value);
+            }
+        }
+        free(previousMemory);
+    }
+
+    private void allocate(int capacity) {
+        checkState(capacity <= MAX_CAPACITY, "Too many ids for an off-heap tracker");
+        // Direct buffers are zeroed, that is filled with free slots.
+        memory = allocateDirect(capacity * Long.BYTES).order(nativeOrder());
+        table = memory.asLongBuffer();
+        mask = capacity - 1;
+        maxFill = HashCommon.maxFill(capacity, LOAD_FACTOR);
+    }
+
+    private static void free(ByteBuffer buffer) {
+        ((DirectBuffer) buffer).cleaner().clean();
+    }
+}
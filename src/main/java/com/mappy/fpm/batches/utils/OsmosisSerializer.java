@@ -1,8 +1,10 @@
 package com.mappy.fpm.batches.utils;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
 import com.vividsolutions.jts.geom.*;
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import lombok.extern.slf4j.Slf4j;
 import org.joda.time.DateTime;
 import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
@@ -18,34 +20,59 @@ import java.io.FileOutputStream;
 import java.util.*;
 import java.util.stream.IntStream;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
-import static java.util.stream.Collectors.toList;
 import static org.openstreetmap.osmosis.core.domain.v0_6.EntityType.Node;
 import static org.openstreetmap.osmosis.core.domain.v0_6.EntityType.Way;
 
 @Slf4j
 public class OsmosisSerializer implements GeometrySerializer {
+    // Lines have a few shape points besides the junctions they share, sized so that trackers seldom grow while converting
+    private static final int NODES_PER_FEATURE = 4;
+    private static final int FEATURES_PER_RELATION = 8;
 
     private final Date date;
     private final Sink sink;
     private final OsmUser user;
-    private final Set<Long> pointTracker = new LongOpenHashSet();
-    private final Set<Long> wayTracker = new LongOpenHashSet();
-    private final Set<Long> relationTracker = new LongOpenHashSet();
+    private final IdTrackers trackers;
+    private final LongSet pointTracker;
+    private final LongSet wayTracker;
+    private final LongSet relationTracker;
+    private final Meter nodes;
+    private final Meter ways;
+    private final Meter relations;
+    // Entities are counted here and marked once the serializer is closed, rather than marking a meter for each entity
+    private long nodesCount;
+    private long waysCount;
+    private long relationsCount;
 
     public OsmosisSerializer(Sink sink, String userName, Date date) {
+        this(sink, userName, date, IdTrackers.HEAP, 0, new MetricRegistry());
+    }
+
+    /**
+     * @param expectedFeatures number of features to be written, used to size the id trackers up front
+     */
+    public OsmosisSerializer(Sink sink, String userName, Date date, IdTrackers trackers, int expectedFeatures, MetricRegistry registry) {
         this.sink = sink;
+        this.nodes = registry.meter(name("serializer", "nodes"));
+        this.ways = registry.meter(name("serializer", "ways"));
+        this.relations = registry.meter(name("serializer", "relations"));
         this.date = date;
         this.user = new OsmUser(1, userName);
+        this.trackers = trackers;
+        this.pointTracker = trackers.create((int) Math.min((long) expectedFeatures * NODES_PER_FEATURE, Integer.MAX_VALUE / 2));
+        this.wayTracker = trackers.create(expectedFeatures);
+        this.relationTracker = trackers.create(expectedFeatures / FEATURES_PER_RELATION);
     }
 
     @Inject
-    public OsmosisSerializer(@Named("com.mappy.fpm.serializer.output") String filename, @Named("com.mappy.fpm.serializer.username") String userName) throws FileNotFoundException {
-        this(new BoundComputerAndSorterSink(new PbfSink(new FileOutputStream(filename), false)), userName, DateTime.now().toDate());
+    public OsmosisSerializer(@Named("com.mappy.fpm.serializer.output") String filename, @Named("com.mappy.fpm.serializer.username") String userName, MetricRegistry registry) throws FileNotFoundException {
+        this(new BoundComputerAndSorterSink(new PbfSink(new FileOutputStream(filename), false)), userName, DateTime.now().toDate(), IdTrackers.HEAP, 0, registry);
     }
 
     @Override
@@ -70,18 +97,20 @@ public class OsmosisSerializer implements GeometrySerializer {
         pointTracker.add(id);
         Node node = new Node(ced(id, tags), point.getY(), point.getX());
         sink.process(new NodeContainer(node));
+        nodesCount++;
 
         return of(node);
     }
 
     @Override
     public Optional<Long> writeBoundary(LineString line, Map<String, String> tags) {
-        Long id = geohash(7, line.getCentroid().getCoordinate());
+        long id = geohash(7, line.getCentroid().getCoordinate());
 
         if (!wayTracker.contains(id)) {
             wayTracker.add(id);
             Way way = new Way(ced(id, tags), getWayNodes(line, tags));
             sink.process(new WayContainer(way));
+            waysCount++;
         }
 
         return of(id);
@@ -92,6 +121,7 @@ public class OsmosisSerializer implements GeometrySerializer {
         List<WayNode> wayNodes = getWayNodes(line, tags);
         Way way = new Way(ced(wayId(line), tags), wayNodes);
         sink.process(new WayContainer(way));
+        waysCount++;
         return way;
     }
 
@@ -106,6 +136,7 @@ public class OsmosisSerializer implements GeometrySerializer {
                 rm.add(new RelationMember(write(polygon.getInteriorRingN(i), newHashMap()).getId(), Way, "inner"));
             }
             sink.process(new RelationContainer(new Relation(ced(wayId(polygon), addMultipolygon(tags)), rm)));
+            relationsCount++;
         }
     }
 
@@ -123,6 +154,7 @@ public class OsmosisSerializer implements GeometrySerializer {
 
         long id = relationId(members.get(0).getMemberId(), layer);
         sink.process(new RelationContainer(new Relation(ced(id, tags), members)));
+        relationsCount++;
         return id;
     }
 
@@ -142,8 +174,17 @@ public class OsmosisSerializer implements GeometrySerializer {
 
     @Override
     public void close() {
-        sink.complete();
-        sink.release();
+        nodes.mark(nodesCount);
+        ways.mark(waysCount);
+        relations.mark(relationsCount);
+        try {
+            sink.complete();
+            sink.release();
+        } finally {
+            trackers.release(pointTracker);
+            trackers.release(wayTracker);
+            trackers.release(relationTracker);
+        }
     }
 
     private List<WayNode> getWayNodes(LineString line, Map<String, String> tags) {
@@ -182,11 +223,12 @@ public class OsmosisSerializer implements GeometrySerializer {
         if (!pointTracker.contains(id)) {
             pointTracker.add(id);
             sink.process(new NodeContainer(new Node(new CommonEntityData(id, 1, date, user, 1L), coordinate.y, coordinate.x)));
+            nodesCount++;
         }
         return id;
     }
 
-    private Long wayId(Geometry geometry) {
+    private long wayId(Geometry geometry) {
         long id = geohash(0, geometry.getCentroid().getCoordinate());
         while (wayTracker.contains(id)) {
             log.debug("Collision on way with {}", id);
@@ -207,8 +249,14 @@ public class OsmosisSerializer implements GeometrySerializer {
         return id;
     }
 
+    /**
+     * Tags are added to the collection of the entity: giving a list to the constructor would copy it.
+     */
     private CommonEntityData ced(long id, Map<String, String> tags) {
-        return new CommonEntityData(id, 1, date, user, 1L, tags.entrySet().stream().map(en -> new Tag(en.getKey(), en.getValue())).collect(toList()));
+        CommonEntityData data = new CommonEntityData(id, 1, date, user, 1L);
+        Collection<Tag> entityTags = data.getTags();
+        tags.forEach((key, value) -> entityTags.add(new Tag(key, value)));
+        return data;
     }
 
     private static Map<String, String> addMultipolygon(Map<String, String> tags) {
@@ -0,0 +1,195 @@
+package com.mappy.fpm.batches.utils;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.openstreetmap.osmosis.osmbinary.Fileformat.Blob;
+import org.openstreetmap.osmosis.osmbinary.Fileformat.BlobHeader;
+import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
+import org.openstreetmap.osmosis.osmbinary.file.FileBlock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Throwables.propagate;
+import static com.google.common.base.Throwables.propagateIfInstanceOf;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+
+/**
+ * Block output stream compressing blocks on a pool shared by all streams, while the serializer builds the next ones.
+ * Compressed blocks are written in the order they were given, at most a few of them wait to be written.
+ * At a given level, the bytes written are the same as with a sequential {@link Deflater}: {@link Deflater#DEFAULT_COMPRESSION}
+ * gives the bytes of {@link BlockOutputStream}.
+ */
+public class ParallelBlockOutputStream extends BlockOutputStream {
+    private static final int COMPRESSOR_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService COMPRESSORS = newFixedThreadPool(COMPRESSOR_THREADS, new BasicThreadFactory.Builder().namingPattern("mappy-PbfCompressor-%d").daemon(true).build());
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<>();
+
+    private final OutputStream output;
+    private final int level;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private boolean compress = true;
+
+    public ParallelBlockOutputStream(OutputStream output) {
+        this(output, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelBlockOutputStream(OutputStream output, int level) {
+        this(output, level, 2 * COMPRESSOR_THREADS);
+    }
+
+    /**
+     * @param level      Zlib level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param maxPending Maximum number of blocks being compressed or waiting to be written.
+     */
+    public ParallelBlockOutputStream(OutputStream output, int level, int maxPending) {
+        super(output);
+        checkArgument(level == Deflater.DEFAULT_COMPRESSION || level >= 0 && level <= 9, "Invalid compression level %s", level);
+        checkArgument(maxPending > 0, "Pending blocks must be positive, got %s", maxPending);
+        this.output = output;
+        this.level = level;
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public void setCompress(String compression) {
+        super.setCompress(compression);
+        compress = !"none".equals(compression);
+    }
+
+    @Override
+    public void write(FileBlock block) throws IOException {
+        boolean compressed = compress;
+        pending.add(COMPRESSORS.submit(() -> encode(block, compressed, level)));
+        while (pending.size() > maxPending) {
+            output.write(await(pending.poll()));
+        }
+    }
+
+    /**
+     * Writes the blocks still being compressed before flushing.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            output.write(await(pending.poll()));
+        }
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            pending.forEach(encoding -> encoding.cancel(false));
+            pending.clear();
+            output.close();
+        }
+    }
+
+    private static byte[] await(Future<byte[]> encoding) throws IOException {
+        try {
+            return encoding.get();
+        }
+        catch (ExecutionException e) {
+            propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw propagate(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Encodes a block as {@link FileBlock#writeTo} does: the size of the header, the header, then the blob.
+     */
+    private static byte[] encode(FileBlock block, boolean compress, int level) throws IOException {
+        ByteString data = block.getData();
+        Blob.Builder blob = Blob.newBuilder().setRawSize(data.size());
+        if (compress) {
+            blob.setZlibData(deflate(data, level));
+        }
+        else {
+            blob.setRaw(data);
+        }
+        Blob built = blob.build();
+
+        BlobHeader.Builder header = BlobHeader.newBuilder().setType(block.getType()).setDatasize(built.getSerializedSize());
+        if (block.getIndexData() != null) {
+            header.setIndexdata(block.getIndexData());
+        }
+        BlobHeader builtHeader = header.build();
+
+        byte[] encoded = new byte[4 + builtHeader.getSerializedSize() + built.getSerializedSize()];
+        CodedOutputStream coded = CodedOutputStream.newInstance(encoded);
+        coded.writeRawByte(builtHeader.getSerializedSize() >>> 24);
+        coded.writeRawByte(builtHeader.getSerializedSize() >>> 16);
+        coded.writeRawByte(builtHeader.getSerializedSize() >>> 8);
+        coded.writeRawByte(builtHeader.getSerializedSize());
+        builtHeader.writeTo(coded);
+        built.writeTo(coded);
+        coded.checkNoSpaceLeft();
+        return encoded;
+    }
+
+    private static ByteString deflate(ByteString data, int level) {
+        Buffers buffers = BUFFERS.get();
+        if (buffers == null || buffers.level != level) {
+            if (buffers != null) {
+                // The deflater of the previous level holds native memory until it is ended.
+                buffers.deflater.end();
+            }
+            buffers = new Buffers(level);
+            BUFFERS.set(buffers);
+        }
+        Deflater deflater = buffers.deflater;
+        deflater.reset();
+        deflater.setInput(buffers.input(data), 0, data.size());
+        deflater.finish();
+
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == buffers.output.length) {
+                buffers.output = Arrays.copyOf(buffers.output, 2 * buffers.output.length);
+            }
+            size += deflater.deflate(buffers.output, size, buffers.output.length - size);
+        }
+        return ByteString.copyFrom(buffers.output, 0, size);
+    }
+
+    /**
+     * Deflater and buffers of a compressing thread, buffers only grow.
+     */
+    private static class Buffers {
+        private final int level;
+        private final Deflater deflater;
+        private byte[] input = new byte[0];
+        private byte[] output = new byte[64 * 1024];
+
+        private Buffers(int level) {
+            this.level = level;
+            this.deflater = new Deflater(level);
+        }
+
+        private byte[] input(ByteString data) {
+            if (input.length < data.size()) {
+                input = new byte[data.size()];
+            }
+            data.copyTo(input, 0);
+            return input;
+        }
+    }
+}
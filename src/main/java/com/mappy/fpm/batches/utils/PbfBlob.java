@@ -0,0 +1,27 @@
+package com.mappy.fpm.batches.utils;
+
+import com.google.protobuf.ByteString;
+import lombok.Value;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A blob of a pbf file: the type and index data of its header, and its serialized Blob message, read from position to limit.
+ * Index data is null when the header has none.
+ */
+@Value
+public class PbfBlob {
+    private final String type;
+    private final ByteBuffer data;
+    private final ByteString indexData;
+
+    public PbfBlob(String type, ByteBuffer data) {
+        this(type, data, null);
+    }
+
+    public PbfBlob(String type, ByteBuffer data, ByteString indexData) {
+        this.type = type;
+        this.data = data;
+        this.indexData = indexData;
+    }
+}
@@ -1,14 +1,13 @@
 package com.mappy.fpm.batches.utils;
 
 import com.google.common.collect.Lists;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
 import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
 import org.openstreetmap.osmosis.core.domain.v0_6.*;
-import org.openstreetmap.osmosis.osmbinary.Fileformat.Blob;
 import org.openstreetmap.osmosis.osmbinary.Osmformat.*;
 import org.openstreetmap.osmosis.osmbinary.Osmformat.Node;
 import org.openstreetmap.osmosis.osmbinary.Osmformat.Relation;
@@ -17,6 +16,8 @@ import org.openstreetmap.osmosis.osmbinary.Osmformat.Way;
 import org.openstreetmap.osmosis.pbf2.v0_6.impl.PbfFieldDecoder;
 import org.openstreetmap.osmosis.pbf2.v0_6.impl.PbfRawBlob;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
@@ -31,55 +32,198 @@ public class PbfBlobDecoder {
     private static final Date EMPTY_TIMESTAMP = new Date(0);
     private static final long EMPTY_CHANGESET = -1;
 
-    public static byte[] inflate(PbfRawBlob rawBlob) throws InvalidProtocolBufferException {
-        Blob blob = Blob.parseFrom(rawBlob.getData());
-        byte[] blobData;
-        if (blob.hasRaw()) {
-            blobData = blob.getRaw().toByteArray();
+    private static final int BLOB_RAW = 1;
+    private static final int BLOB_RAW_SIZE = 2;
+    private static final int BLOB_ZLIB_DATA = 3;
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    public static byte[] inflate(PbfRawBlob rawBlob) {
+        return inflate(ByteBuffer.wrap(rawBlob.getData()));
+    }
+
+    public static byte[] inflate(ByteBuffer blob) {
+        ByteBuffer contents = contents(blob);
+        byte[] blobData = new byte[contents.remaining()];
+        contents.get(blobData);
+        return blobData;
+    }
+
+    /**
+     * @return Whether the serialized Blob message holds zlib data, rather than raw data.
+     */
+    public static boolean isCompressed(ByteBuffer blob) {
+        ByteBuffer data = blob.duplicate();
+        while (data.hasRemaining()) {
+            int tag = (int) readVarint(data);
+            if (tag >>> 3 == BLOB_ZLIB_DATA && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                return true;
+            }
+            skip(data, tag & 7);
         }
-        else if (blob.hasZlibData()) {
-            Inflater inflater = new Inflater();
-            inflater.setInput(blob.getZlibData().toByteArray());
-            blobData = new byte[blob.getRawSize()];
-            try {
-                inflater.inflate(blobData);
+        return false;
+    }
+
+    /**
+     * Reads the fields of the Blob message in place rather than parsing it, which would copy the compressed data twice.
+     *
+     * @return A heap buffer view of the uncompressed data, either in the blob or in a buffer reused by the calling thread,
+     * to be read before the next blob is decompressed.
+     */
+    private static ByteBuffer contents(ByteBuffer blob) {
+        ByteBuffer data = blob.duplicate();
+        ByteBuffer raw = null;
+        ByteBuffer zlibData = null;
+        int rawSize = 0;
+        while (data.hasRemaining()) {
+            int tag = (int) readVarint(data);
+            int wireType = tag & 7;
+            int field = tag >>> 3;
+            if (field == BLOB_RAW_SIZE && wireType == WIRETYPE_VARINT) {
+                rawSize = (int) readVarint(data);
             }
-            catch (DataFormatException e) {
-                throw new OsmosisRuntimeException("Unable to decompress PBF blob.", e);
+            else if ((field == BLOB_RAW || field == BLOB_ZLIB_DATA) && wireType == WIRETYPE_LENGTH_DELIMITED) {
+                ByteBuffer bytes = readBytes(data);
+                if (field == BLOB_RAW) {
+                    raw = bytes;
+                }
+                else {
+                    zlibData = bytes;
+                }
             }
-            if (!inflater.finished()) {
-                throw new OsmosisRuntimeException("PBF blob contains incomplete compressed data.");
+            else {
+                skip(data, wireType);
             }
         }
-        else {
-            throw new OsmosisRuntimeException("PBF blob uses unsupported compression, only raw or zlib may be used.");
+
+        if (raw != null) {
+            return raw.hasArray() ? raw : BUFFERS.get().copy(raw);
+        }
+        if (zlibData != null) {
+            return BUFFERS.get().inflate(zlibData, rawSize);
+        }
+        throw new OsmosisRuntimeException("PBF blob uses unsupported compression, only raw or zlib may be used.");
+    }
+
+    private static long readVarint(ByteBuffer data) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new OsmosisRuntimeException("Malformed varint in PBF blob.");
+    }
+
+    private static ByteBuffer readBytes(ByteBuffer data) {
+        int length = (int) readVarint(data);
+        ByteBuffer bytes = data.slice();
+        bytes.limit(length);
+        data.position(data.position() + length);
+        return bytes;
+    }
+
+    private static void skip(ByteBuffer data, int wireType) {
+        switch (wireType) {
+            case WIRETYPE_VARINT:
+                readVarint(data);
+                break;
+            case WIRETYPE_FIXED64:
+                data.position(data.position() + 8);
+                break;
+            case WIRETYPE_LENGTH_DELIMITED:
+                readBytes(data);
+                break;
+            case WIRETYPE_FIXED32:
+                data.position(data.position() + 4);
+                break;
+            default:
+                throw new OsmosisRuntimeException("Unsupported wire type " + wireType + " in PBF blob.");
         }
-        return blobData;
     }
 
     public static List<EntityContainer> processOsmPrimitives(PbfRawBlob data) {
+        return processOsmPrimitives(new PbfBlob(data.getType(), ByteBuffer.wrap(data.getData())));
+    }
+
+    public static List<EntityContainer> processOsmPrimitives(PbfBlob data) {
+        return processOsmPrimitives(data, DecodingOptions.ALL);
+    }
+
+    public static List<EntityContainer> processOsmPrimitives(PbfBlob data, DecodingOptions options) {
         try {
             if (!"OSMData".equals(data.getType())) {
                 return Lists.newArrayList();
             }
-            PrimitiveBlock block = PrimitiveBlock.parseFrom(inflate(data));
-            PbfFieldDecoder fieldDecoder = new PbfFieldDecoder(block);
+            ByteBuffer contents = contents(data.getData());
+            PrimitiveBlock block = PrimitiveBlock.parseFrom(CodedInputStream.newInstance(contents.array(), contents.arrayOffset() + contents.position(), contents.remaining()));
+            BlockDecoder blockDecoder = new BlockDecoder(new PbfFieldDecoder(block), options);
 
             List<EntityContainer> decodedEntities = Lists.newArrayList();
             for (PrimitiveGroup primitiveGroup : block.getPrimitivegroupList()) {
-                decodedEntities.addAll(processNodes(primitiveGroup.getDense(), fieldDecoder));
-                decodedEntities.addAll(processNodes(primitiveGroup.getNodesList(), fieldDecoder));
-                decodedEntities.addAll(processWays(primitiveGroup.getWaysList(), fieldDecoder));
-                decodedEntities.addAll(processRelations(primitiveGroup.getRelationsList(), fieldDecoder));
+                if (options.isNodes()) {
+                    decodedEntities.addAll(processNodes(primitiveGroup.getDense(), blockDecoder));
+                    decodedEntities.addAll(processNodes(primitiveGroup.getNodesList(), blockDecoder));
+                }
+                decodedEntities.addAll(processWays(primitiveGroup.getWaysList(), blockDecoder));
+                decodedEntities.addAll(processRelations(primitiveGroup.getRelationsList(), blockDecoder));
             }
             return decodedEntities;
-        } catch (InvalidProtocolBufferException e) {
+        } catch (IOException e) {
             throw propagate(e);
         }
     }
 
+    /**
+     * Inflater and buffers of a decoding thread, kept for its whole life instead of being allocated for each blob.
+     */
+    private static class Buffers {
+        private final Inflater inflater = new Inflater();
+        private byte[] input = new byte[0];
+        private byte[] output = new byte[0];
+
+        ByteBuffer inflate(ByteBuffer zlibData, int rawSize) {
+            inflater.reset();
+            if (zlibData.hasArray()) {
+                inflater.setInput(zlibData.array(), zlibData.arrayOffset() + zlibData.position(), zlibData.remaining());
+            }
+            else {
+                // Inflater only reads arrays before java 9, mapped data has to be copied once.
+                int size = zlibData.remaining();
+                zlibData.get(input = grow(input, size), 0, size);
+                inflater.setInput(input, 0, size);
+            }
+            output = grow(output, rawSize);
+            try {
+                inflater.inflate(output, 0, rawSize);
+            }
+            catch (DataFormatException e) {
+                throw new OsmosisRuntimeException("Unable to decompress PBF blob.", e);
+            }
+            if (!inflater.finished()) {
+                throw new OsmosisRuntimeException("PBF blob contains incomplete compressed data.");
+            }
+            return ByteBuffer.wrap(output, 0, rawSize);
+        }
+
+        ByteBuffer copy(ByteBuffer raw) {
+            int size = raw.remaining();
+            raw.get(output = grow(output, size), 0, size);
+            return ByteBuffer.wrap(output, 0, size);
+        }
+
+        private static byte[] grow(byte[] buffer, int size) {
+            return buffer.length < size ? new byte[size] : buffer;
+        }
+    }
+
     private static void buildTags(CommonEntityData entityData, List<Integer> keys, List<Integer> values,
-            PbfFieldDecoder fieldDecoder) {
+            BlockDecoder blockDecoder) {
         Collection<Tag> tags = entityData.getTags();
 
         // Ensure parallel lists are of equal size.
@@ -88,49 +232,57 @@ public class PbfBlobDecoder {
                     + values.size() + ") don't match");
         }
 
+        if (!blockDecoder.options.isTags()) {
+            return;
+        }
+
         Iterator<Integer> keyIterator = keys.iterator();
         Iterator<Integer> valueIterator = values.iterator();
         while (keyIterator.hasNext()) {
-            String key = fieldDecoder.decodeString(keyIterator.next());
-            String value = fieldDecoder.decodeString(valueIterator.next());
+            String key = blockDecoder.decodeString(keyIterator.next());
+            String value = blockDecoder.decodeString(valueIterator.next());
             Tag tag = new Tag(key, value);
             tags.add(tag);
         }
     }
 
     private static CommonEntityData buildCommonEntityData(long entityId, List<Integer> keys, List<Integer> values, Info info,
-            PbfFieldDecoder fieldDecoder) {
+            BlockDecoder blockDecoder) {
+        if (!blockDecoder.options.isMetadata()) {
+            return buildCommonEntityData(entityId, keys, values, blockDecoder);
+        }
+
         OsmUser user;
         CommonEntityData entityData;
 
         // Build the user, but only if one exists.
         if (info.hasUid() && info.getUid() >= 0 && info.hasUserSid()) {
-            user = new OsmUser(info.getUid(), fieldDecoder.decodeString(info.getUserSid()));
+            user = blockDecoder.user(info.getUid(), info.getUserSid());
         }
         else {
             user = OsmUser.NONE;
         }
 
         entityData = new CommonEntityData(entityId, info.getVersion(),
-                fieldDecoder.decodeTimestamp(info.getTimestamp()), user, info.getChangeset());
+                blockDecoder.decodeTimestamp(info.getTimestamp()), user, info.getChangeset());
 
-        buildTags(entityData, keys, values, fieldDecoder);
+        buildTags(entityData, keys, values, blockDecoder);
 
         return entityData;
     }
 
     private static CommonEntityData buildCommonEntityData(long entityId, List<Integer> keys, List<Integer> values,
-            PbfFieldDecoder fieldDecoder) {
+            BlockDecoder blockDecoder) {
         CommonEntityData entityData;
 
         entityData = new CommonEntityData(entityId, EMPTY_VERSION, EMPTY_TIMESTAMP, OsmUser.NONE, EMPTY_CHANGESET);
 
-        buildTags(entityData, keys, values, fieldDecoder);
+        buildTags(entityData, keys, values, blockDecoder);
 
         return entityData;
     }
 
-    private static List<EntityContainer> processNodes(List<Node> nodes, PbfFieldDecoder fieldDecoder) {
+    private static List<EntityContainer> processNodes(List<Node> nodes, BlockDecoder blockDecoder) {
         List<EntityContainer> decodedEntities = Lists.newArrayList();
         for (Node node : nodes) {
             org.openstreetmap.osmosis.core.domain.v0_6.Node osmNode;
@@ -142,15 +294,15 @@ public class PbfBlobDecoder {
                         node.getKeysList(),
                         node.getValsList(),
                         node.getInfo(),
-                        fieldDecoder);
+                        blockDecoder);
 
             }
             else {
-                entityData = buildCommonEntityData(node.getId(), node.getKeysList(), node.getValsList(), fieldDecoder);
+                entityData = buildCommonEntityData(node.getId(), node.getKeysList(), node.getValsList(), blockDecoder);
             }
 
-            osmNode = new org.openstreetmap.osmosis.core.domain.v0_6.Node(entityData, fieldDecoder.decodeLatitude(node
-                    .getLat()), fieldDecoder.decodeLatitude(node.getLon()));
+            osmNode = new org.openstreetmap.osmosis.core.domain.v0_6.Node(entityData, blockDecoder.decodeLatitude(node
+                    .getLat()), blockDecoder.decodeLatitude(node.getLon()));
 
             // Add the bound object to the results.
             decodedEntities.add(new NodeContainer(osmNode));
@@ -158,7 +310,7 @@ public class PbfBlobDecoder {
         return decodedEntities;
     }
 
-    private static List<EntityContainer> processNodes(DenseNodes nodes, PbfFieldDecoder fieldDecoder) {
+    private static List<EntityContainer> processNodes(DenseNodes nodes, BlockDecoder blockDecoder) {
         List<EntityContainer> decodedEntities = Lists.newArrayList();
         List<Long> idList = nodes.getIdList();
         List<Long> latList = nodes.getLatList();
@@ -173,7 +325,7 @@ public class PbfBlobDecoder {
         Iterator<Integer> keysValuesIterator = nodes.getKeysValsList().iterator();
 
         DenseInfo denseInfo;
-        if (nodes.hasDenseinfo()) {
+        if (nodes.hasDenseinfo() && blockDecoder.options.isMetadata()) {
             denseInfo = nodes.getDenseinfo();
         }
         else {
@@ -206,14 +358,14 @@ public class PbfBlobDecoder {
                 // Build the user, but only if one exists.
                 OsmUser user;
                 if (userId >= 0) {
-                    user = new OsmUser(userId, fieldDecoder.decodeString(userSid));
+                    user = blockDecoder.user(userId, userSid);
                 }
                 else {
                     user = OsmUser.NONE;
                 }
 
                 entityData = new CommonEntityData(nodeId, denseInfo.getVersion(i),
-                        fieldDecoder.decodeTimestamp(timestamp), user, changesetId);
+                        blockDecoder.decodeTimestamp(timestamp), user, changesetId);
             }
             else {
                 entityData = new CommonEntityData(nodeId, EMPTY_VERSION, EMPTY_TIMESTAMP, OsmUser.NONE,
@@ -224,7 +376,7 @@ public class PbfBlobDecoder {
             // in the same PBF array. Each set of tags is delimited by an index
             // with a value of 0.
             Collection<Tag> tags = entityData.getTags();
-            while (keysValuesIterator.hasNext()) {
+            while (blockDecoder.options.isTags() && keysValuesIterator.hasNext()) {
                 int keyIndex = keysValuesIterator.next();
                 if (keyIndex == 0) {
                     break;
@@ -235,12 +387,12 @@ public class PbfBlobDecoder {
                 }
                 int valueIndex = keysValuesIterator.next();
 
-                Tag tag = new Tag(fieldDecoder.decodeString(keyIndex), fieldDecoder.decodeString(valueIndex));
+                Tag tag = new Tag(blockDecoder.decodeString(keyIndex), blockDecoder.decodeString(valueIndex));
                 tags.add(tag);
             }
 
             node = new org.openstreetmap.osmosis.core.domain.v0_6.Node(entityData,
-                    fieldDecoder.decodeLatitude(latitude), fieldDecoder.decodeLongitude(longitude));
+                    blockDecoder.decodeLatitude(latitude), blockDecoder.decodeLongitude(longitude));
 
             // Add the bound object to the results.
             decodedEntities.add(new NodeContainer(node));
@@ -248,7 +400,7 @@ public class PbfBlobDecoder {
         return decodedEntities;
     }
 
-    private static List<EntityContainer> processWays(List<Way> ways, PbfFieldDecoder fieldDecoder) {
+    private static List<EntityContainer> processWays(List<Way> ways, BlockDecoder blockDecoder) {
         List<EntityContainer> decodedEntities = Lists.newArrayList();
         for (Way way : ways) {
             org.openstreetmap.osmosis.core.domain.v0_6.Way osmWay;
@@ -260,11 +412,11 @@ public class PbfBlobDecoder {
                         way.getKeysList(),
                         way.getValsList(),
                         way.getInfo(),
-                        fieldDecoder);
+                        blockDecoder);
 
             }
             else {
-                entityData = buildCommonEntityData(way.getId(), way.getKeysList(), way.getValsList(), fieldDecoder);
+                entityData = buildCommonEntityData(way.getId(), way.getKeysList(), way.getValsList(), blockDecoder);
             }
 
             osmWay = new org.openstreetmap.osmosis.core.domain.v0_6.Way(entityData);
@@ -286,7 +438,7 @@ public class PbfBlobDecoder {
 
     private static void buildRelationMembers(org.openstreetmap.osmosis.core.domain.v0_6.Relation relation,
             List<Long> memberIds, List<Integer> memberRoles, List<MemberType> memberTypes,
-            PbfFieldDecoder fieldDecoder) {
+            BlockDecoder blockDecoder) {
 
         List<RelationMember> members = relation.getMembers();
 
@@ -323,13 +475,13 @@ public class PbfBlobDecoder {
                 throw new OsmosisRuntimeException("Member type of " + memberType + " is not supported.");
             }
 
-            member = new RelationMember(memberId, entityType, fieldDecoder.decodeString(memberRoleIterator.next()));
+            member = new RelationMember(memberId, entityType, blockDecoder.decodeString(memberRoleIterator.next()));
 
             members.add(member);
         }
     }
 
-    private static List<EntityContainer> processRelations(List<Relation> relations, PbfFieldDecoder fieldDecoder) {
+    private static List<EntityContainer> processRelations(List<Relation> relations, BlockDecoder blockDecoder) {
         List<EntityContainer> decodedEntities = Lists.newArrayList();
         for (Relation relation : relations) {
             org.openstreetmap.osmosis.core.domain.v0_6.Relation osmRelation;
@@ -341,7 +493,7 @@ public class PbfBlobDecoder {
                         relation.getKeysList(),
                         relation.getValsList(),
                         relation.getInfo(),
-                        fieldDecoder);
+                        blockDecoder);
 
             }
             else {
@@ -349,7 +501,7 @@ public class PbfBlobDecoder {
                         relation.getId(),
                         relation.getKeysList(),
                         relation.getValsList(),
-                        fieldDecoder);
+                        blockDecoder);
             }
 
             osmRelation = new org.openstreetmap.osmosis.core.domain.v0_6.Relation(entityData);
@@ -359,7 +511,7 @@ public class PbfBlobDecoder {
                     relation.getMemidsList(),
                     relation.getRolesSidList(),
                     relation.getTypesList(),
-                    fieldDecoder);
+                    blockDecoder);
 
             // Add the bound object to the results.
             decodedEntities.add(new RelationContainer(osmRelation));
@@ -367,4 +519,49 @@ public class PbfBlobDecoder {
         return decodedEntities;
     }
 
-}
\ No newline at end of file
+    /**
+     * Decodes the fields of a block. Consecutive entities usually share their user and timestamp,
+     * so the last ones are reused instead of being allocated for each entity.
+     */
+    private static class BlockDecoder {
+        private final PbfFieldDecoder fieldDecoder;
+        private final DecodingOptions options;
+        private OsmUser user;
+        private int userSid;
+        private Date timestamp;
+        private long rawTimestamp;
+
+        BlockDecoder(PbfFieldDecoder fieldDecoder, DecodingOptions options) {
+            this.fieldDecoder = fieldDecoder;
+            this.options = options;
+        }
+
+        String decodeString(int rawString) {
+            return fieldDecoder.decodeString(rawString);
+        }
+
+        double decodeLatitude(long rawLatitude) {
+            return fieldDecoder.decodeLatitude(rawLatitude);
+        }
+
+        double decodeLongitude(long rawLongitude) {
+            return fieldDecoder.decodeLongitude(rawLongitude);
+        }
+
+        Date decodeTimestamp(long rawTimestamp) {
+            if (timestamp == null || this.rawTimestamp != rawTimestamp) {
+                this.timestamp = fieldDecoder.decodeTimestamp(rawTimestamp);
+                this.rawTimestamp = rawTimestamp;
+            }
+            return timestamp;
+        }
+
+        OsmUser user(int userId, int userSid) {
+            if (user == null || user.getId() != userId || this.userSid != userSid) {
+                this.user = new OsmUser(userId, fieldDecoder.decodeString(userSid));
+                this.userSid = userSid;
+            }
+            return user;
+        }
+    }
+}
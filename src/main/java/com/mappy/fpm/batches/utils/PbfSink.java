@@ -1,31 +1,28 @@
 package com.mappy.fpm.batches.utils;
 
-import crosby.binary.osmosis.OsmosisSerializer;
 import lombok.experimental.Delegate;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
-import org.openstreetmap.osmosis.osmbinary.Osmformat.HeaderBBox;
-import org.openstreetmap.osmosis.osmbinary.Osmformat.HeaderBlock;
 import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
 
 import java.io.OutputStream;
-import java.util.Date;
 
 public class PbfSink implements Sink {
     @Delegate
-    private final OsmosisSerializer serializer;
+    private final PbfWriter writer;
 
     public PbfSink(OutputStream output, boolean compress) {
-        BlockOutputStream os = new BlockOutputStream(output);
+        this(output, compress, true);
+    }
+
+    /**
+     * @param metadata Whether to write the version, timestamp, user and changeset of entities.
+     */
+    public PbfSink(OutputStream output, boolean compress, boolean metadata) {
+        // Compressed blocks are compressed on the shared pool, as merged files are.
+        BlockOutputStream os = compress ? new ParallelBlockOutputStream(output) : new BlockOutputStream(output);
         if (!compress) {
             os.setCompress("none");
         }
-        serializer = new OsmosisSerializer(os);
-    }
-
-    public void writeHeader(HeaderBBox bbox) {
-        serializer.finishHeader(HeaderBlock.newBuilder()
-                .setBbox(bbox)
-                .setSource("fpm")
-                .setOsmosisReplicationTimestamp(new Date().getTime()));
+        writer = new PbfWriter(os, metadata);
     }
-}
\ No newline at end of file
+}
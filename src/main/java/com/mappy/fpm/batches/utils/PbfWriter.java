@@ -0,0 +1,571 @@
+package com.mappy.fpm.batches.utils;
+
+import com.google.protobuf.ByteString;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+import org.openstreetmap.osmosis.osmbinary.Osmformat.HeaderBBox;
+import org.openstreetmap.osmosis.osmbinary.Osmformat.HeaderBlock;
+import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
+import org.openstreetmap.osmosis.osmbinary.file.FileBlock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Pbf writer for the entities fpm produces. Entities are kept in columns of primitives until their block is written, and
+ * blocks are encoded straight into buffers reused from one block to the next: no protobuf builder nor boxed value per entity.
+ * Blocks hold up to 8000 entities of a single type, nodes are dense, strings are numbered by decreasing frequency.
+ * Metadata of entities which have some is written unless omitted, entities read without metadata are written without.
+ * Dense nodes share the metadata of their block: nodes with and without metadata are written in separate blocks.
+ * Entities are expected sorted: the ids of the first and last entities of each block are stored in its header as a {@link BlockRange}.
+ */
+public class PbfWriter implements Sink {
+    private static final int BLOCK_SIZE = 8000;
+    private static final int DATE_GRANULARITY = 1000;
+    private static final int NO_USER = -1;
+
+    private final BlockOutputStream output;
+    private final boolean metadata;
+    private boolean headerWritten;
+    private EntityType type;
+    private boolean blockMetadata;
+
+    private final Strings strings = new Strings();
+    private final LongArrayList ids = new LongArrayList();
+    private final IntArrayList tags = new IntArrayList();
+    private final IntArrayList tagEnds = new IntArrayList();
+    private final LongArrayList latitudes = new LongArrayList();
+    private final LongArrayList longitudes = new LongArrayList();
+    private final LongArrayList members = new LongArrayList();
+    private final IntArrayList memberTypes = new IntArrayList();
+    private final IntArrayList memberRoles = new IntArrayList();
+    private final IntArrayList memberEnds = new IntArrayList();
+    private final IntArrayList versions = new IntArrayList();
+    private final LongArrayList timestamps = new LongArrayList();
+    private final LongArrayList changesets = new LongArrayList();
+    private final IntArrayList uids = new IntArrayList();
+    private final IntArrayList userSids = new IntArrayList();
+
+    private final ProtoBuffer block = new ProtoBuffer();
+    private final ProtoBuffer group = new ProtoBuffer();
+    private final ProtoBuffer message = new ProtoBuffer();
+    private final ProtoBuffer info = new ProtoBuffer();
+    private final ProtoBuffer packed = new ProtoBuffer();
+
+    public PbfWriter(BlockOutputStream output) {
+        this(output, true);
+    }
+
+    /**
+     * @param metadata Whether to write the version, timestamp, user and changeset of entities.
+     */
+    public PbfWriter(BlockOutputStream output, boolean metadata) {
+        this.output = output;
+        this.metadata = metadata;
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+    }
+
+    /**
+     * Writes the header, it has to come before any entity.
+     */
+    public void writeHeader(HeaderBBox bbox) {
+        writeHeader(HeaderBlock.newBuilder().setBbox(bbox).setSource("fpm").setOsmosisReplicationTimestamp(System.currentTimeMillis()));
+    }
+
+    private void writeHeader(HeaderBlock.Builder header) {
+        if (headerWritten) {
+            throw new OsmosisRuntimeException("Header already written");
+        }
+        headerWritten = true;
+        header.setWritingprogram("fpm").addRequiredFeatures("OsmSchema-V0.6").addRequiredFeatures("DenseNodes");
+        write("OSMHeader", header.build().toByteString(), null);
+    }
+
+    @Override
+    public void process(EntityContainer entityContainer) {
+        Entity entity = entityContainer.getEntity();
+        if (entity instanceof Bound) {
+            processBound((Bound) entity);
+            return;
+        }
+        if (!headerWritten) {
+            writeHeader(HeaderBlock.newBuilder());
+        }
+        boolean entityMetadata = metadata && entity.getVersion() >= 0;
+        if (entity.getType() != type || ids.size() == BLOCK_SIZE || entity.getType() == EntityType.Node && entityMetadata != blockMetadata) {
+            writeBlock();
+            type = entity.getType();
+            blockMetadata = entityMetadata;
+        }
+
+        ids.add(entity.getId());
+        for (Tag tag : entity.getTags()) {
+            tags.add(strings.index(tag.getKey()));
+            tags.add(strings.index(tag.getValue()));
+        }
+        tagEnds.add(tags.size());
+        if (metadata) {
+            addMetadata(entity);
+        }
+
+        switch (type) {
+            case Node:
+                Node node = (Node) entity;
+                latitudes.add(mapDegrees(node.getLatitude()));
+                longitudes.add(mapDegrees(node.getLongitude()));
+                break;
+            case Way:
+                for (WayNode wayNode : ((Way) entity).getWayNodes()) {
+                    members.add(wayNode.getNodeId());
+                }
+                memberEnds.add(members.size());
+                break;
+            case Relation:
+                for (RelationMember member : ((Relation) entity).getMembers()) {
+                    members.add(member.getMemberId());
+                    memberTypes.add(memberType(member.getMemberType()));
+                    memberRoles.add(strings.index(member.getMemberRole()));
+                }
+                memberEnds.add(members.size());
+                break;
+            default:
+                throw new OsmosisRuntimeException("Unable to write " + entity.getType());
+        }
+    }
+
+    private void processBound(Bound bound) {
+        if (!headerWritten) {
+            writeHeader(HeaderBlock.newBuilder().setBbox(HeaderBBox.newBuilder()
+                    .setLeft(mapRawDegrees(bound.getLeft()))
+                    .setRight(mapRawDegrees(bound.getRight()))
+                    .setTop(mapRawDegrees(bound.getTop()))
+                    .setBottom(mapRawDegrees(bound.getBottom()))));
+        }
+    }
+
+    /**
+     * Entities read without metadata have a negative version, they are written without too.
+     */
+    private void addMetadata(Entity entity) {
+        versions.add(entity.getVersion());
+        if (entity.getVersion() < 0) {
+            timestamps.add(0);
+            changesets.add(0);
+            uids.add(NO_USER);
+            userSids.add(0);
+            return;
+        }
+        timestamps.add(entity.getTimestamp().getTime() / DATE_GRANULARITY);
+        changesets.add(entity.getChangesetId());
+        OsmUser user = entity.getUser();
+        if (user == OsmUser.NONE) {
+            uids.add(NO_USER);
+            userSids.add(0);
+        }
+        else {
+            uids.add(user.getId());
+            userSids.add(strings.index(user.getName()));
+        }
+    }
+
+    /**
+     * Writes the header if needed and the pending entities, then flushes the output. Entities can still be written afterwards.
+     */
+    public void flush() {
+        if (!headerWritten) {
+            writeHeader(HeaderBlock.newBuilder());
+        }
+        writeBlock();
+        try {
+            output.flush();
+        }
+        catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to flush pbf output", e);
+        }
+    }
+
+    @Override
+    public void complete() {
+        flush();
+    }
+
+    @Override
+    public void release() {
+        try {
+            output.close();
+        }
+        catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to close pbf output", e);
+        }
+    }
+
+    private void writeBlock() {
+        if (ids.isEmpty()) {
+            return;
+        }
+        int[] sids = strings.sort();
+
+        block.clear();
+        message.clear();
+        for (byte[] string : strings.sorted()) {
+            message.bytes(1, string);
+        }
+        block.message(1, message);
+
+        group.clear();
+        switch (type) {
+            case Node:
+                encodeDenseNodes(sids);
+                group.message(2, message);
+                break;
+            case Way:
+            case Relation:
+                encodeWaysOrRelations(sids);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected " + type);
+        }
+        block.message(2, group);
+        write("OSMData", ByteString.copyFrom(block.array(), 0, block.size()), new BlockRange(type, ids.getLong(0), ids.getLong(ids.size() - 1)).toIndexData());
+
+        strings.clear();
+        ids.clear();
+        tags.clear();
+        tagEnds.clear();
+        latitudes.clear();
+        longitudes.clear();
+        members.clear();
+        memberTypes.clear();
+        memberRoles.clear();
+        memberEnds.clear();
+        versions.clear();
+        timestamps.clear();
+        changesets.clear();
+        uids.clear();
+        userSids.clear();
+    }
+
+    private void encodeDenseNodes(int[] sids) {
+        message.clear();
+        message.message(1, packed.deltas(ids, 0, ids.size()));
+        if (blockMetadata) {
+            info.clear();
+            info.message(1, packed.int32s(versions));
+            info.message(2, packed.deltas(timestamps, 0, timestamps.size()));
+            info.message(3, packed.deltas(changesets, 0, changesets.size()));
+            info.message(4, packed.deltas(uids));
+            info.message(5, packed.deltas(remap(userSids, sids)));
+            message.message(5, info);
+        }
+        message.message(8, packed.deltas(latitudes, 0, latitudes.size()));
+        message.message(9, packed.deltas(longitudes, 0, longitudes.size()));
+        if (!tags.isEmpty()) {
+            packed.clear();
+            int start = 0;
+            for (int node = 0; node < ids.size(); node++) {
+                int end = tagEnds.getInt(node);
+                for (int tag = start; tag < end; tag++) {
+                    packed.varint(sids[tags.getInt(tag)]);
+                }
+                packed.varint(0);
+                start = end;
+            }
+            message.message(10, packed);
+        }
+    }
+
+    private void encodeWaysOrRelations(int[] sids) {
+        int tagStart = 0;
+        int memberStart = 0;
+        for (int entity = 0; entity < ids.size(); entity++) {
+            message.clear();
+            message.tag(1, ProtoBuffer.VARINT);
+            message.varint(ids.getLong(entity));
+
+            int tagEnd = tagEnds.getInt(entity);
+            if (tagEnd > tagStart) {
+                packed.clear();
+                for (int tag = tagStart; tag < tagEnd; tag += 2) {
+                    packed.varint(sids[tags.getInt(tag)]);
+                }
+                message.message(2, packed);
+                packed.clear();
+                for (int tag = tagStart; tag < tagEnd; tag += 2) {
+                    packed.varint(sids[tags.getInt(tag + 1)]);
+                }
+                message.message(3, packed);
+            }
+            tagStart = tagEnd;
+
+            if (metadata && versions.getInt(entity) >= 0) {
+                encodeInfo(entity, sids);
+                message.message(4, info);
+            }
+
+            int memberEnd = memberEnds.getInt(entity);
+            if (type == EntityType.Relation) {
+                packed.clear();
+                for (int member = memberStart; member < memberEnd; member++) {
+                    packed.varint(sids[memberRoles.getInt(member)]);
+                }
+                message.message(8, packed);
+                message.message(9, packed.deltas(members, memberStart, memberEnd));
+                packed.clear();
+                for (int member = memberStart; member < memberEnd; member++) {
+                    packed.varint(memberTypes.getInt(member));
+                }
+                message.message(10, packed);
+            }
+            else {
+                message.message(8, packed.deltas(members, memberStart, memberEnd));
+            }
+            memberStart = memberEnd;
+
+            group.message(type == EntityType.Way ? 3 : 4, message);
+        }
+    }
+
+    private void encodeInfo(int entity, int[] sids) {
+        info.clear();
+        info.tag(1, ProtoBuffer.VARINT);
+        info.varint(versions.getInt(entity));
+        info.tag(2, ProtoBuffer.VARINT);
+        info.varint(timestamps.getLong(entity));
+        info.tag(3, ProtoBuffer.VARINT);
+        info.varint(changesets.getLong(entity));
+        if (uids.getInt(entity) != NO_USER) {
+            info.tag(4, ProtoBuffer.VARINT);
+            info.varint(uids.getInt(entity));
+            info.tag(5, ProtoBuffer.VARINT);
+            info.varint(sids[userSids.getInt(entity)]);
+        }
+    }
+
+    /**
+     * Replaces, in place, string indexes of the block by their final number. Index 0 stays 0.
+     */
+    private static IntArrayList remap(IntArrayList indexes, int[] sids) {
+        for (int i = 0; i < indexes.size(); i++) {
+            indexes.set(i, sids[indexes.getInt(i)]);
+        }
+        return indexes;
+    }
+
+    private void write(String blockType, ByteString data, ByteString indexData) {
+        try {
+            output.write(FileBlock.newInstance(blockType, data, indexData));
+        }
+        catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write pbf block", e);
+        }
+    }
+
+    /**
+     * Same mapping as osmosis, at the default granularity of 100 nanodegrees.
+     */
+    private static long mapDegrees(double degrees) {
+        return (int) (degrees / .0000001);
+    }
+
+    private static long mapRawDegrees(double degrees) {
+        return (long) (degrees / .000000001);
+    }
+
+    private static int memberType(EntityType type) {
+        switch (type) {
+            case Node:
+                return 0;
+            case Way:
+                return 1;
+            case Relation:
+                return 2;
+            default:
+                throw new OsmosisRuntimeException("Unable to write a relation member of type " + type);
+        }
+    }
+
+    /**
+     * String table of a block. Strings are indexed in order of appearance, then numbered by decreasing frequency when the block
+     * is written, so that the most used ones are encoded on a single byte. Number 0 is the empty string, as the format requires.
+     */
+    private static class Strings {
+        private final Object2IntOpenHashMap<String> indexes = new Object2IntOpenHashMap<>();
+        private final List<String> values = new ArrayList<>();
+        private final IntArrayList counts = new IntArrayList();
+        private final List<byte[]> sorted = new ArrayList<>();
+        private long[] order = new long[0];
+        private int[] sids = new int[0];
+
+        Strings() {
+            indexes.defaultReturnValue(-1);
+            clear();
+        }
+
+        int index(String value) {
+            int index = indexes.getInt(value);
+            if (index < 0) {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value);
+                counts.add(1);
+            }
+            else {
+                counts.set(index, counts.getInt(index) + 1);
+            }
+            return index;
+        }
+
+        /**
+         * @return The final number of each index.
+         */
+        int[] sort() {
+            int size = values.size();
+            if (order.length < size) {
+                order = new long[size];
+                sids = new int[size];
+            }
+            // Decreasing count, then order of appearance; the reserved empty string stays first.
+            for (int index = 1; index < size; index++) {
+                order[index - 1] = (long) (Integer.MAX_VALUE - counts.getInt(index)) << 32 | index;
+            }
+            Arrays.sort(order, 0, size - 1);
+
+            sorted.clear();
+            sorted.add(new byte[0]);
+            sids[0] = 0;
+            for (int i = 0; i < size - 1; i++) {
+                int index = (int) order[i];
+                sids[index] = i + 1;
+                sorted.add(values.get(index).getBytes(UTF_8));
+            }
+            return sids;
+        }
+
+        List<byte[]> sorted() {
+            return sorted;
+        }
+
+        void clear() {
+            indexes.clear();
+            values.clear();
+            counts.clear();
+            values.add(null);
+            counts.add(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Growable buffer of protobuf encoded fields, reused from one block to the next.
+     */
+    private static class ProtoBuffer {
+        static final int VARINT = 0;
+        static final int LENGTH_DELIMITED = 2;
+
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] array() {
+            return bytes;
+        }
+
+        void tag(int field, int wireType) {
+            varint(field << 3 | wireType);
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void bytes(int field, byte[] value) {
+            tag(field, LENGTH_DELIMITED);
+            varint(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        void message(int field, ProtoBuffer value) {
+            tag(field, LENGTH_DELIMITED);
+            varint(value.size);
+            ensure(value.size);
+            System.arraycopy(value.bytes, 0, bytes, size, value.size);
+            size += value.size;
+        }
+
+        /**
+         * Replaces the content by the zigzag encoded deltas of values, from start to end.
+         */
+        ProtoBuffer deltas(LongArrayList values, int start, int end) {
+            clear();
+            long previous = 0;
+            for (int i = start; i < end; i++) {
+                long value = values.getLong(i);
+                long delta = value - previous;
+                varint(delta << 1 ^ delta >> 63);
+                previous = value;
+            }
+            return this;
+        }
+
+        ProtoBuffer deltas(IntArrayList values) {
+            clear();
+            int previous = 0;
+            for (int i = 0; i < values.size(); i++) {
+                int value = values.getInt(i);
+                int delta = value - previous;
+                varint((delta << 1 ^ delta >> 31) & 0xFFFFFFFFL);
+                previous = value;
+            }
+            return this;
+        }
+
+        ProtoBuffer int32s(IntArrayList values) {
+            clear();
+            for (int i = 0; i < values.size(); i++) {
+                varint(values.getInt(i));
+            }
+            return this;
+        }
+
+        private void ensure(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + length));
+            }
+        }
+    }
+}
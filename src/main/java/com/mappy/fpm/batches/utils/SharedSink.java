@@ -0,0 +1,36 @@
+package com.mappy.fpm.batches.utils;
+
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+import java.util.Map;
+
+/**
+ * Lets several serializers write into the same sink, one after the other from a single thread: the order in which they
+ * write is part of the output. Completing or releasing it has no effect: the owner of the sink completes it once all
+ * serializers are done.
+ */
+public class SharedSink implements Sink {
+    private final Sink sink;
+
+    public SharedSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+    }
+
+    @Override
+    public void process(EntityContainer container) {
+        sink.process(container);
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public void release() {
+    }
+}
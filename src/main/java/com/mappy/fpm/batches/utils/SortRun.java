@@ -0,0 +1,99 @@
+package com.mappy.fpm.batches.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * Sorted values spilled to a file.
+ */
+@Slf4j
+class SortRun<T> {
+    private final File file;
+    private final long count;
+
+    private SortRun(File file, long count) {
+        this.file = file;
+        this.count = count;
+    }
+
+    static <T> SortRun<T> write(File directory, SpillFormat<T> format, Iterator<T> values, int bufferSize) {
+        File file = null;
+        try {
+            file = File.createTempFile("fpm-sort", ".run", directory);
+            long count = 0;
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), bufferSize))) {
+                SpillFormat.Writer<T> writer = format.newWriter(output);
+                while (values.hasNext()) {
+                    writer.write(values.next());
+                    count++;
+                }
+                writer.finish();
+            }
+            return new SortRun<>(file, count);
+        }
+        catch (IOException e) {
+            if (file != null) {
+                file.delete();
+            }
+            throw propagate(e);
+        }
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    ReleasableIterator<T> iterate(SpillFormat<T> format, int bufferSize) {
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+            SpillFormat.Reader<T> reader = format.newReader(input);
+            return new ReleasableIterator<T>() {
+                private long remaining = count;
+
+                @Override
+                public boolean hasNext() {
+                    return remaining > 0;
+                }
+
+                @Override
+                public T next() {
+                    if (remaining == 0) {
+                        throw new NoSuchElementException();
+                    }
+                    remaining--;
+                    try {
+                        return reader.read();
+                    }
+                    catch (IOException e) {
+                        throw propagate(e);
+                    }
+                }
+
+                @Override
+                public void release() {
+                    try {
+                        input.close();
+                    }
+                    catch (IOException e) {
+                        log.warn("Unable to close {}", file, e);
+                    }
+                }
+            };
+        }
+        catch (FileNotFoundException e) {
+            throw propagate(e);
+        }
+    }
+
+    void delete() {
+        if (!file.delete() && file.exists()) {
+            log.warn("Unable to delete {}", file);
+        }
+    }
+}
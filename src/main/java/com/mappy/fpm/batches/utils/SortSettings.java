@@ -0,0 +1,34 @@
+package com.mappy.fpm.batches.utils;
+
+import com.codahale.metrics.MetricRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import lombok.experimental.Wither;
+
+import java.io.File;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * How much a sorter keeps in memory before spilling sorted runs to disk, where runs are spilled,
+ * how many runs are merged at once, and the registry sorters report to.
+ */
+@Value
+@Wither
+@AllArgsConstructor
+public class SortSettings {
+    public static final SortSettings DEFAULT = new SortSettings(128L << 20, singletonList(new File(System.getProperty("java.io.tmpdir"))), 64);
+
+    private final long memoryBudget;
+    private final List<File> spillDirectories;
+    private final int maxFanIn;
+    private final MetricRegistry metrics;
+
+    /**
+     * Settings whose metrics are not reported.
+     */
+    public SortSettings(long memoryBudget, List<File> spillDirectories, int maxFanIn) {
+        this(memoryBudget, spillDirectories, maxFanIn, new MetricRegistry());
+    }
+}
@@ -0,0 +1,31 @@
+package com.mappy.fpm.batches.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Encoding of the values of a sorted run spilled to disk.
+ */
+public interface SpillFormat<T> {
+
+    Writer<T> newWriter(DataOutputStream output);
+
+    Reader<T> newReader(DataInputStream input);
+
+    interface Writer<T> {
+        void write(T value) throws IOException;
+
+        /**
+         * Called once the whole run was written.
+         */
+        default void finish() throws IOException {}
+    }
+
+    interface Reader<T> {
+        /**
+         * Called exactly as many times as values were written in the run.
+         */
+        T read() throws IOException;
+    }
+}
@@ -0,0 +1,98 @@
+package com.mappy.fpm.batches.utils;
+
+import com.vividsolutions.jts.geom.*;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Accumulates the time spent in the delegate serializer, to tell it apart from the time spent tagging features.
+ * Not thread safe, like the serializers it wraps.
+ */
+public class TimedGeometrySerializer implements GeometrySerializer {
+    private final GeometrySerializer delegate;
+    private long elapsedNanos;
+
+    public TimedGeometrySerializer(GeometrySerializer delegate) {
+        this.delegate = delegate;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public void write(Point point, Map<String, String> tags) {
+        long start = System.nanoTime();
+        delegate.write(point, tags);
+        elapsedNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public Optional<Node> writePoint(Point point, Map<String, String> tags) {
+        long start = System.nanoTime();
+        Optional<Node> node = delegate.writePoint(point, tags);
+        elapsedNanos += System.nanoTime() - start;
+        return node;
+    }
+
+    @Override
+    public boolean containPoint(Point point) {
+        return delegate.containPoint(point);
+    }
+
+    @Override
+    public void write(Polygon polygon, Map<String, String> tags) {
+        long start = System.nanoTime();
+        delegate.write(polygon, tags);
+        elapsedNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void write(MultiPolygon multiPolygon, Map<String, String> tags) {
+        long start = System.nanoTime();
+        delegate.write(multiPolygon, tags);
+        elapsedNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void write(MultiLineString multiLineString, Map<String, String> tags) {
+        long start = System.nanoTime();
+        delegate.write(multiLineString, tags);
+        elapsedNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public long write(List<RelationMember> members, Map<String, String> tags) {
+        long start = System.nanoTime();
+        long id = delegate.write(members, tags);
+        elapsedNanos += System.nanoTime() - start;
+        return id;
+    }
+
+    @Override
+    public Way write(LineString line, Map<String, String> tags) {
+        long start = System.nanoTime();
+        Way way = delegate.write(line, tags);
+        elapsedNanos += System.nanoTime() - start;
+        return way;
+    }
+
+    @Override
+    public Optional<Long> writeBoundary(LineString line, Map<String, String> tags) {
+        long start = System.nanoTime();
+        Optional<Long> id = delegate.writeBoundary(line, tags);
+        elapsedNanos += System.nanoTime() - start;
+        return id;
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,121 @@
+package com.mappy.fpm.batches;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.mappy.fpm.batches.tomtom.ConversionSettings.DEFAULT;
+import static com.google.common.io.Files.write;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BuildManifestTest extends AbstractTest {
+
+    private final File manifestFile = new File("target/tests/manifest/manifest.json");
+    private final File input = new File("target/tests/manifest/and___________nw.shp");
+    private final File output = new File("target/tests/manifest/and.osm.pbf");
+
+    @Before
+    public void setUp() throws IOException {
+        manifestFile.delete();
+        input.getParentFile().mkdirs();
+        write("roads", input, UTF_8);
+        write("pbf", output, UTF_8);
+    }
+
+    @Test
+    public void should_reuse_output_when_inputs_did_not_change() {
+        BuildManifest manifest = BuildManifest.load(manifestFile);
+        List<File> inputs = newArrayList(input);
+        manifest.record("Andorre/and", manifest.hash(inputs, DEFAULT), output.getPath());
+
+        BuildManifest reloaded = BuildManifest.load(manifestFile);
+
+        assertThat(reloaded.upToDate("Andorre/and", reloaded.hash(inputs, DEFAULT)).get().getFile()).isEqualTo(output.getPath());
+    }
+
+    @Test
+    public void should_not_reuse_output_when_an_input_changed() throws IOException {
+        BuildManifest manifest = BuildManifest.load(manifestFile);
+        List<File> inputs = newArrayList(input);
+        manifest.record("Andorre/and", manifest.hash(inputs, DEFAULT), output.getPath());
+
+        write("other roads", input, UTF_8);
+
+        assertThat(BuildManifest.load(manifestFile).upToDate("Andorre/and", manifest.hash(inputs, DEFAULT))).isEmpty();
+    }
+
+    @Test
+    public void should_not_reuse_output_converted_with_other_settings() {
+        BuildManifest manifest = BuildManifest.load(manifestFile);
+        List<File> inputs = newArrayList(input);
+        manifest.record("Andorre/and", manifest.hash(inputs, DEFAULT), output.getPath());
+
+        BuildManifest reloaded = BuildManifest.load(manifestFile);
+
+        assertThat(reloaded.upToDate("Andorre/and", reloaded.hash(inputs, DEFAULT.withMetadata(false)))).isEmpty();
+        assertThat(reloaded.upToDate("Andorre/and", reloaded.hash(inputs, DEFAULT.withSharedSink(true)))).isEmpty();
+        assertThat(reloaded.upToDate("Andorre/and", reloaded.hash(inputs, DEFAULT.withShapefileThreads(4)))).isPresent();
+    }
+
+    @Test
+    public void should_not_reuse_missing_output() {
+        BuildManifest manifest = BuildManifest.load(manifestFile);
+        String inputs = manifest.hash(newArrayList(input), DEFAULT);
+        manifest.record("Andorre/and", inputs, output.getPath());
+
+        output.delete();
+
+        assertThat(manifest.upToDate("Andorre/and", inputs)).isEmpty();
+    }
+
+    @Test
+    public void should_combine_recorded_inputs() {
+        BuildManifest manifest = BuildManifest.load(manifestFile);
+        manifest.record("Andorre/and", "hash1", null);
+        String combined = manifest.combine(newArrayList("Andorre/and"), -1, false);
+
+        manifest.record("Andorre/and", "hash2", null);
+
+        assertThat(manifest.combine(newArrayList("Andorre/and"), -1, false)).isNotEqualTo(combined);
+    }
+
+    @Test
+    public void should_not_reuse_output_whose_split_files_are_missing() throws IOException {
+        File split = new File("target/tests/manifest/splitter/1/and.osm.pbf");
+        split.getParentFile().mkdirs();
+        write("split", split, UTF_8);
+        BuildManifest manifest = BuildManifest.load(manifestFile);
+        String inputs = manifest.hash(newArrayList(input), DEFAULT);
+        manifest.record("Andorre/and", inputs, output.getPath(), newArrayList(split.getPath()));
+        assertThat(BuildManifest.load(manifestFile).upToDate("Andorre/and", inputs)).isPresent();
+
+        split.delete();
+
+        assertThat(BuildManifest.load(manifestFile).upToDate("Andorre/and", inputs)).isEmpty();
+    }
+
+    @Test
+    public void should_combine_merge_settings() {
+        BuildManifest manifest = BuildManifest.load(manifestFile);
+        manifest.record("Andorre/and", "hash1", null);
+        String combined = manifest.combine(newArrayList("Andorre/and"), -1, false);
+
+        assertThat(manifest.combine(newArrayList("Andorre/and"), 9, false)).isNotEqualTo(combined);
+        assertThat(manifest.combine(newArrayList("Andorre/and"), -1, true)).isNotEqualTo(combined);
+        assertThat(manifest.combine(newArrayList("Andorre/and"), -1, false)).isEqualTo(combined);
+    }
+
+    @Test
+    public void should_never_reuse_anything_when_disabled() {
+        BuildManifest manifest = BuildManifest.disabled();
+        manifest.record("Andorre/and", manifest.hash(newArrayList(input), DEFAULT), output.getPath());
+
+        assertThat(manifest.upToDate("Andorre/and", manifest.hash(newArrayList(input), DEFAULT))).isEmpty();
+        assertThat(manifestFile).doesNotExist();
+    }
+}
@@ -1,10 +1,14 @@
 package com.mappy.fpm.batches;
 
 import com.mappy.fpm.batches.merge.pbf.OsmMerger;
+import com.mappy.fpm.batches.merge.pbf.PbfIterator;
+import com.mappy.fpm.batches.tomtom.ConversionSettings;
 import com.mappy.fpm.batches.tomtom.Tomtom2OsmTestUtils.PbfContent;
 import net.morbz.osmonaut.osm.RelationMember;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
 
 import java.io.File;
 import java.util.List;
@@ -13,6 +17,7 @@ import java.util.Optional;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.mappy.fpm.batches.CountryWapper.ALL_COUNTRIES;
 import static com.mappy.fpm.batches.tomtom.Tomtom2OsmTestUtils.read;
+import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -58,8 +63,8 @@ public class GenerateFullPbfTest {
         assertThat(new File("target/tests/Andorre/pbfFiles/andand.osm.pbf").exists()).isTrue();
         assertThat(new File("target/tests/Andorre/Andorre.osm.pbf").exists()).isTrue();
 
-        verify(osmMerger).merge(anyListOf(String.class), eq("target/tests/Andorre/Andorre.osm.pbf"));
-        verify(osmMerger).merge(anyListOf(String.class), eq("target/tests/Europe.osm.pbf"));
+        verify(osmMerger).merge(anyListOf(String.class), eq("target/tests/Andorre/Andorre.osm.pbf"), eq(1));
+        verify(osmMerger).merge(anyListOf(String.class), eq("target/tests/Europe.osm.pbf"), eq(1));
 
         PbfContent pbfContent = read(new File("target/tests/Europe.osm.pbf"));
 
@@ -74,6 +79,37 @@ public class GenerateFullPbfTest {
         assertRelationsWithRoleIsNotEmpty(pbfContent, "admin_centre");
     }
 
+    @Test
+    public void should_generate_the_same_zone_with_a_shared_sink() throws Exception {
+        generateFullPbf.run(newArrayList("Andorre"));
+        new GenerateFullPbf(osmMerger, "src/test/resources/generateFullPbf", "target/tests/shared", "Europe.osm.pbf", 1, ConversionSettings.DEFAULT.withSharedSink(true), false, Long.MAX_VALUE)
+                .run(newArrayList("Andorre"));
+
+        assertThat(new File("target/tests/shared/Andorre/pbfFiles/and").list()).isEmpty();
+        assertThat(entities("target/tests/shared/Andorre/pbfFiles/and.osm.pbf")).isEqualTo(entities("target/tests/Andorre/pbfFiles/and.osm.pbf"));
+    }
+
+    @Test
+    public void should_merge_zones_directly_into_the_final_file() throws Exception {
+        generateFullPbf.run(newArrayList("Andorre"));
+        new GenerateFullPbf(osmMerger, "src/test/resources/generateFullPbf", "target/tests/direct", "Europe.osm.pbf", 1, ConversionSettings.DEFAULT, false, Long.MAX_VALUE, true)
+                .run(newArrayList("Andorre"));
+
+        assertThat(new File("target/tests/direct/Andorre/Andorre.osm.pbf")).doesNotExist();
+        assertThat(entities("target/tests/direct/Europe.osm.pbf")).isEqualTo(entities("target/tests/Europe.osm.pbf"));
+    }
+
+    private static List<String> entities(String pbfFile) {
+        List<String> entities = newArrayList();
+        PbfIterator iterator = new PbfIterator(pbfFile);
+        while (iterator.hasNext()) {
+            Entity entity = iterator.next().getEntity();
+            String nodes = entity instanceof Way ? ((Way) entity).getWayNodes().stream().map(node -> String.valueOf(node.getNodeId())).collect(joining(",")) : "";
+            entities.add(entity.getType() + "/" + entity.getId() + "/" + newArrayList(entity.getTags()) + "/" + nodes);
+        }
+        return entities;
+    }
+
     private void assertAdminLevelWithNameFrIsPresent(PbfContent pbfContent, String level) {
         Optional<RelationMember> admin_level = pbfContent.getRelations().stream()
                 .filter(r -> r.getTags().hasKeyValue("admin_level", level))
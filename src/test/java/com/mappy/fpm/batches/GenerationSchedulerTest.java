@@ -0,0 +1,145 @@
+package com.mappy.fpm.batches;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.mappy.fpm.batches.GenerationScheduler.*;
+import static java.util.Collections.synchronizedList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GenerationSchedulerTest {
+
+    private final GenerationScheduler scheduler = new GenerationScheduler(1);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void should_run_dependent_task_after_its_dependencies() {
+        List<String> done = synchronizedList(newArrayList());
+        CompletableFuture<String> first = scheduler.submit(ZONE_PRIORITY, () -> add(done, "zone1"));
+        CompletableFuture<String> second = scheduler.submit(ZONE_PRIORITY, () -> add(done, "zone2"));
+
+        String merged = await(scheduler.submitAfter(newArrayList(first, second), MERGE_PRIORITY, () -> add(done, first.join() + "+" + second.join())));
+
+        assertThat(merged).isEqualTo("zone1+zone2");
+        assertThat(done).containsExactly("zone1", "zone2", "zone1+zone2");
+    }
+
+    @Test
+    public void should_start_merges_before_queued_zones() throws Exception {
+        List<String> done = synchronizedList(newArrayList());
+        CountDownLatch latch = new CountDownLatch(1);
+
+        CompletableFuture<String> blocking = scheduler.submit(ZONE_PRIORITY, () -> {
+            waitFor(latch);
+            return add(done, "zone1");
+        });
+        CompletableFuture<String> zone2 = scheduler.submit(ZONE_PRIORITY, () -> add(done, "zone2"));
+        CompletableFuture<String> merge = scheduler.submitAfter(newArrayList(blocking), MERGE_PRIORITY, () -> add(done, "merge1"));
+        latch.countDown();
+
+        await(CompletableFuture.allOf(zone2, merge));
+
+        assertThat(done).containsExactly("zone1", "merge1", "zone2");
+    }
+
+    @Test
+    public void should_start_largest_zones_first() {
+        List<String> done = synchronizedList(newArrayList());
+
+        List<CompletableFuture<String>> zones = scheduler.batch(() -> newArrayList(
+                scheduler.submit(ZONE_PRIORITY, 10, 0, () -> add(done, "small")),
+                scheduler.submit(ZONE_PRIORITY, 1000, 0, () -> add(done, "large")),
+                scheduler.submit(ZONE_PRIORITY, 100, 0, () -> add(done, "medium"))));
+
+        await(CompletableFuture.allOf(zones.toArray(new CompletableFuture[zones.size()])));
+
+        assertThat(done).containsExactly("large", "medium", "small");
+    }
+
+    @Test
+    public void should_start_tasks_of_a_failed_batch() {
+        CompletableFuture<String> zone = scheduler.submit(ZONE_PRIORITY, () -> "zone");
+
+        assertThatThrownBy(() -> scheduler.batch(() -> {
+            scheduler.submit(ZONE_PRIORITY, () -> "other");
+            throw new IllegalArgumentException("No input file");
+        })).isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(await(zone)).isEqualTo("zone");
+    }
+
+    @Test
+    public void should_not_run_zones_together_when_they_exceed_the_memory_budget() {
+        GenerationScheduler budgetScheduler = new GenerationScheduler(2, 100);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        try {
+            List<CompletableFuture<Integer>> zones = newArrayList();
+            for (int i = 0; i < 4; i++) {
+                zones.add(budgetScheduler.submit(ZONE_PRIORITY, 60, 60, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    sleep();
+                    return running.decrementAndGet();
+                }));
+            }
+            await(CompletableFuture.allOf(zones.toArray(new CompletableFuture[zones.size()])));
+        } finally {
+            budgetScheduler.shutdown();
+        }
+
+        assertThat(maxRunning.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_run_a_zone_larger_than_the_memory_budget_alone() {
+        GenerationScheduler budgetScheduler = new GenerationScheduler(2, 100);
+        try {
+            assertThat(await(budgetScheduler.submit(ZONE_PRIORITY, 500, 500, () -> "huge"))).isEqualTo("huge");
+        } finally {
+            budgetScheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void should_fail_dependent_task_when_a_dependency_fails() {
+        CompletableFuture<String> failing = scheduler.submit(ZONE_PRIORITY, () -> {
+            throw new IllegalStateException("zone failed");
+        });
+
+        CompletableFuture<String> merge = scheduler.submitAfter(newArrayList(failing), MERGE_PRIORITY, () -> "merged");
+
+        assertThatThrownBy(() -> await(merge)).isInstanceOf(IllegalStateException.class).hasMessage("zone failed");
+    }
+
+    private static String add(List<String> done, String value) {
+        done.add(value);
+        return value;
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void waitFor(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
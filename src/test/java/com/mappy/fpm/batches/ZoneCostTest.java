@@ -0,0 +1,33 @@
+package com.mappy.fpm.batches;
+
+import com.mappy.fpm.batches.tomtom.TomtomFolder;
+import org.junit.Test;
+
+import java.io.File;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ZoneCostTest {
+
+    @Test
+    public void should_estimate_zone_cost_from_shapefiles_and_dbf_files() {
+        File roads = new File("src/test/resources/generateFullPbf/Andorre/andand___________nw.shp");
+        File roadsDbf = new File("src/test/resources/generateFullPbf/Andorre/andand___________nw.dbf");
+        File roadsIndex = new File("src/test/resources/generateFullPbf/Andorre/andand___________nw.shx");
+
+        ZoneCost zoneCost = ZoneCost.estimate(newArrayList(roads, roadsDbf, roadsIndex));
+
+        assertThat(zoneCost.getCost()).isEqualTo(roads.length() + roadsDbf.length());
+        assertThat(zoneCost.getMemory()).isEqualTo(roads.length() + 3 * roadsDbf.length());
+    }
+
+    @Test
+    public void should_estimate_larger_cost_for_larger_zones() {
+        ZoneCost country = ZoneCost.estimate(new TomtomFolder("src/test/resources/generateFullPbf/Andorre/", "and").getZoneFiles());
+        ZoneCost department = ZoneCost.estimate(new TomtomFolder("src/test/resources/generateFullPbf/Andorre/", "andand").getZoneFiles());
+
+        assertThat(department.getCost()).isGreaterThan(country.getCost());
+    }
+}
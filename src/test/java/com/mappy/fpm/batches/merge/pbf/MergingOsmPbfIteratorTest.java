@@ -114,6 +114,43 @@ public class MergingOsmPbfIteratorTest {
         assertThat(streamIterator(merge).map(ec -> ec.getEntity().getId()).collect(toList())).containsExactly(1L, 3L, 4L);
     }
 
+    @Test
+    public void should_merge_tags_on_nodes_with_same_ids() {
+        Iterator<EntityContainer> it1 = newArrayList(node(3, new Tag("k1", "v1"))).iterator();
+        Iterator<EntityContainer> it2 = newArrayList(node(3, new Tag("k2", "v2"))).iterator();
+
+        Iterator<EntityContainer> merge = new MergingOsmPbfIterator(it1, it2);
+
+        assertThat(toMap(merge.next().getEntity().getTags())).containsOnly(entry("k1", "v1"), entry("k2", "v2"));
+        assertThat(merge.hasNext()).isFalse();
+    }
+
+    @Test
+    public void should_not_merge_tags_on_nodes_with_different_ids() {
+        Iterator<EntityContainer> it1 = newArrayList(node(3, new Tag("k1", "v1"))).iterator();
+        Iterator<EntityContainer> it2 = newArrayList(node(4, new Tag("k2", "v2"))).iterator();
+
+        Iterator<EntityContainer> merge = new MergingOsmPbfIterator(it1, it2);
+
+        assertThat(toMap(merge.next().getEntity().getTags())).containsOnly(entry("k1", "v1"));
+        assertThat(toMap(merge.next().getEntity().getTags())).containsOnly(entry("k2", "v2"));
+    }
+
+    @Test
+    public void should_keep_entity_of_last_iterator_with_its_tags_first() {
+        EntityContainer last = node(3, new Tag("k3", "v3"));
+        Iterator<EntityContainer> it1 = newArrayList(node(3, new Tag("k1", "v1"))).iterator();
+        Iterator<EntityContainer> it2 = newArrayList(node(3, new Tag("k2", "v2"))).iterator();
+        Iterator<EntityContainer> it3 = newArrayList(last).iterator();
+
+        Iterator<EntityContainer> merge = MergingOsmPbfIterator.merge(it1, it2, it3);
+
+        EntityContainer merged = merge.next();
+        assertThat(merged).isSameAs(last);
+        assertThat(merged.getEntity().getTags()).extracting(Tag::getKey).containsExactly("k3", "k2", "k1");
+        assertThat(merge.hasNext()).isFalse();
+    }
+
     private Map<String, String> toMap(Collection<Tag> tags) {
         return tags.stream().collect(Collectors.toMap(t -> t.getKey(), t -> t.getValue()));
     }
@@ -132,6 +169,10 @@ public class MergingOsmPbfIteratorTest {
         return container(new Node(data(id), 0.0, 0.0));
     }
 
+    private EntityContainer node(long id, Tag... tags) {
+        return container(new Node(new CommonEntityData(id, 0, (Date) null, null, 0L, newArrayList(tags)), 0.0, 0.0));
+    }
+
     private EntityContainer way(long id) {
         return container(new Way(data(id)));
     }
@@ -1,9 +1,21 @@
 package com.mappy.fpm.batches.merge.pbf;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.ByteString;
 import com.mappy.fpm.batches.AbstractTest;
+import com.mappy.fpm.batches.utils.MappedPbfReader;
+import com.mappy.fpm.batches.utils.PbfSink;
 import org.junit.Test;
 
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.osmbinary.Fileformat.Blob;
+
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -32,4 +44,107 @@ public class OsmMergerTest extends AbstractTest {
 
         assertThat(new File("target/tests/outputAll.osm.pbf").exists()).isTrue();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_report_merged_entities_and_merge_time() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+
+        new OsmMerger(registry).merge(newArrayList("src/test/resources/merge/Belgique.osm.pbf", "src/test/resources/merge/Luxembourg.osm.pbf"), "target/tests/outputMetrics.osm.pbf");
+
+        assertThat(registry.timer("merge").getCount()).isEqualTo(1);
+        assertThat(registry.meter("merge.nodes").getCount()).isPositive();
+        assertThat(registry.meter("merge.ways").getCount()).isPositive();
+    }
+
+    @Test
+    public void should_copy_blocks_without_overlap_as_is() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        String belgique = "src/test/resources/merge/Belgique.osm.pbf";
+        String luxembourg = "src/test/resources/merge/Luxembourg.osm.pbf";
+
+        new OsmMerger(registry).merge(newArrayList(belgique, luxembourg), "target/tests/outputCopied.osm.pbf");
+
+        assertThat(registry.meter("merge.copied").getCount()).isPositive();
+        assertThat(entities(new PbfIterator("target/tests/outputCopied.osm.pbf"))).isEqualTo(entities(MergingOsmPbfIterator.merge(new PbfIterator(belgique), new PbfIterator(luxembourg))));
+    }
+
+    @Test
+    public void should_merge_ranges_concurrently_as_a_single_merge() throws Exception {
+        List<String> inputs = newArrayList("src/test/resources/merge/Belgique.osm.pbf", "src/test/resources/merge/Luxembourg.osm.pbf");
+
+        new OsmMerger().merge(inputs, "target/tests/outputSequential.osm.pbf");
+        new OsmMerger().merge(inputs, "target/tests/outputPartitioned.osm.pbf", 4);
+
+        assertThat(entities(new PbfIterator("target/tests/outputPartitioned.osm.pbf"))).isEqualTo(entities(new PbfIterator("target/tests/outputSequential.osm.pbf")));
+        assertThat(new File("target/tests/outputPartitioned.osm.pbf.part1")).doesNotExist();
+    }
+
+    @Test
+    public void should_merge_all_inputs_at_once_as_merging_them_in_groups() throws Exception {
+        String belgique = "src/test/resources/merge/Belgique.osm.pbf";
+        String luxembourg = "src/test/resources/merge/Luxembourg.osm.pbf";
+        String toll = "src/test/resources/merge/toll.osm.pbf";
+
+        new OsmMerger().merge(newArrayList(belgique, luxembourg), "target/tests/outputGroup.osm.pbf");
+        new OsmMerger().merge(newArrayList("target/tests/outputGroup.osm.pbf", toll), "target/tests/outputGroups.osm.pbf");
+        new OsmMerger().merge(newArrayList(belgique, luxembourg, toll), "target/tests/outputAtOnce.osm.pbf");
+
+        assertThat(entities(new PbfIterator("target/tests/outputAtOnce.osm.pbf"))).isEqualTo(entities(new PbfIterator("target/tests/outputGroups.osm.pbf")));
+    }
+
+    @Test
+    public void should_compress_blocks_of_uncompressed_inputs() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        String belgique = uncompressed("src/test/resources/merge/Belgique.osm.pbf", "target/tests/BelgiqueRaw.osm.pbf");
+        String luxembourg = uncompressed("src/test/resources/merge/Luxembourg.osm.pbf", "target/tests/LuxembourgRaw.osm.pbf");
+
+        new OsmMerger(registry).merge(newArrayList(belgique, luxembourg), "target/tests/outputCompressed.osm.pbf");
+
+        assertThat(registry.meter("merge.copied").getCount()).isZero();
+        assertAllBlobsCompressed("target/tests/outputCompressed.osm.pbf");
+        assertThat(entities(new PbfIterator("target/tests/outputCompressed.osm.pbf"))).isEqualTo(entities(MergingOsmPbfIterator.merge(new PbfIterator(belgique), new PbfIterator(luxembourg))));
+    }
+
+    @Test
+    public void should_compress_the_only_input_file_when_it_is_uncompressed() throws Exception {
+        String toll = uncompressed("src/test/resources/merge/toll.osm.pbf", "target/tests/tollRaw.osm.pbf");
+
+        new OsmMerger().merge(newArrayList(toll), "target/tests/outputTollCompressed.osm.pbf");
+
+        assertAllBlobsCompressed("target/tests/outputTollCompressed.osm.pbf");
+        assertThat(entities(new PbfIterator("target/tests/outputTollCompressed.osm.pbf"))).isEqualTo(entities(new PbfIterator(toll)));
+    }
+
+    private static void assertAllBlobsCompressed(String pbfFile) throws IOException {
+        MappedPbfReader reader = new MappedPbfReader(new File(pbfFile));
+        try {
+            while (reader.hasNext()) {
+                assertThat(Blob.parseFrom(ByteString.copyFrom(reader.next().getData())).hasZlibData()).isTrue();
+            }
+        }
+        finally {
+            reader.release();
+        }
+    }
+
+    private static String uncompressed(String input, String output) throws IOException {
+        PbfSink sink = new PbfSink(new FileOutputStream(output), false);
+        PbfIterator iterator = new PbfIterator(input);
+        while (iterator.hasNext()) {
+            sink.process(iterator.next());
+        }
+        iterator.release();
+        sink.complete();
+        sink.release();
+        return output;
+    }
+
+    private static List<String> entities(Iterator<EntityContainer> iterator) {
+        List<String> entities = newArrayList();
+        while (iterator.hasNext()) {
+            Entity entity = iterator.next().getEntity();
+            entities.add(entity.getType() + "/" + entity.getId() + "/" + newArrayList(entity.getTags()));
+        }
+        return entities;
+    }
+}
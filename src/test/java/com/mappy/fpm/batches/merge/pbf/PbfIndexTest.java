@@ -0,0 +1,92 @@
+package com.mappy.fpm.batches.merge.pbf;
+
+import com.mappy.fpm.batches.utils.PbfWriter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.openstreetmap.osmosis.core.domain.v0_6.EntityType.Node;
+import static org.openstreetmap.osmosis.core.domain.v0_6.EntityType.Way;
+
+public class PbfIndexTest {
+    private static final String PBF = "src/test/resources/merge/Luxembourg.osm.pbf";
+    private static final String INDEXED = "target/tests/indexed.osm.pbf";
+
+    @BeforeClass
+    public static void writeIndexed() throws FileNotFoundException {
+        new File(INDEXED).getParentFile().mkdirs();
+        PbfWriter writer = new PbfWriter(new BlockOutputStream(new FileOutputStream(INDEXED)));
+        PbfIterator iterator = new PbfIterator(PBF);
+        while (iterator.hasNext()) {
+            writer.process(iterator.next());
+        }
+        writer.complete();
+        writer.release();
+    }
+
+    @Test
+    public void should_read_ranges_from_headers_as_decoded() {
+        PbfIndex indexed = PbfIndex.of(INDEXED);
+
+        assertThat(indexed.getEntries()).hasSize(10);
+        assertThat(indexed.getEntries()).extracting(PbfIndex.Entry::getFirst).isEqualTo(decodedFirstKeys(INDEXED));
+        assertThat(indexed.getEntries().get(0).getFirst()).isEqualTo(PbfIndex.of(PBF).getEntries().get(0).getFirst());
+    }
+
+    @Test
+    public void should_iterate_over_a_range_of_keys() {
+        PbfIndex index = PbfIndex.of(INDEXED);
+        EntityKey from = new EntityKey(Node, 0);
+        EntityKey to = new EntityKey(Way, 0);
+
+        List<String> expected = newArrayList();
+        for (PbfIterator all = new PbfIterator(PBF); all.hasNext(); ) {
+            Entity entity = all.next().getEntity();
+            if (EntityKey.compare(entity, from) >= 0 && EntityKey.compare(entity, to) < 0) {
+                expected.add(entity.getType() + "/" + entity.getId());
+            }
+        }
+
+        assertThat(keys(PbfIterator.range(index, from, to))).isEqualTo(expected).isNotEmpty();
+        assertThat(keys(PbfIterator.range(index, to, null)).size() + expected.size()).isEqualTo(keys(new PbfIterator(PBF)).size());
+    }
+
+    @Test
+    public void should_split_keys_in_ranges_of_increasing_keys() {
+        PbfIndex index = PbfIndex.of(PBF);
+
+        List<EntityKey> bounds = PbfIndex.split(asList(index, PbfIndex.of("src/test/resources/merge/Belgique.osm.pbf")), 4);
+
+        assertThat(bounds).hasSize(3).isSorted().doesNotHaveDuplicates();
+    }
+
+    private static List<EntityKey> decodedFirstKeys(String file) {
+        List<EntityKey> keys = newArrayList();
+        PbfIterator iterator = new PbfIterator(file);
+        while (iterator.hasNext()) {
+            EntityKey key = EntityKey.of(iterator.next().getEntity());
+            if (iterator.isBlockStart()) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static List<String> keys(PbfIterator iterator) {
+        List<String> keys = newArrayList();
+        while (iterator.hasNext()) {
+            Entity entity = iterator.next().getEntity();
+            keys.add(entity.getType() + "/" + entity.getId());
+        }
+        return keys;
+    }
+}
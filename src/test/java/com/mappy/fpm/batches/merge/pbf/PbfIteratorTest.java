@@ -1,7 +1,16 @@
 package com.mappy.fpm.batches.merge.pbf;
 
+import com.mappy.fpm.batches.utils.DecodingOptions;
 import org.junit.Test;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
 
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class PbfIteratorTest {
@@ -43,4 +52,54 @@ public class PbfIteratorTest {
 
         assertThat(pbfIterator.hasNext()).isFalse();
     }
+
+    @Test
+    public void should_return_entities_in_file_order_whatever_the_read_ahead() {
+        List<String> sequential = entities(new PbfIterator("src/test/resources/merge/Luxembourg.osm.pbf", 1, DecodingOptions.ALL));
+        List<String> readAhead = entities(new PbfIterator("src/test/resources/merge/Luxembourg.osm.pbf", 8, DecodingOptions.ALL));
+
+        assertThat(readAhead).hasSameSizeAs(sequential).isEqualTo(sequential);
+        assertThat(sequential.size()).isGreaterThan(8000);
+    }
+
+    @Test
+    public void should_only_decode_needed_parts() {
+        DecodingOptions skeleton = DecodingOptions.ALL.withNodes(false).withTags(false).withMetadata(false);
+        PbfIterator full = new PbfIterator("src/test/resources/merge/Luxembourg.osm.pbf");
+        PbfIterator partial = new PbfIterator("src/test/resources/merge/Luxembourg.osm.pbf", skeleton);
+
+        List<Way> fullWays = newArrayList();
+        while (full.hasNext()) {
+            Entity entity = full.next().getEntity();
+            if (entity instanceof Way) {
+                fullWays.add((Way) entity);
+            }
+        }
+        List<Entity> partialEntities = newArrayList();
+        while (partial.hasNext()) {
+            partialEntities.add(partial.next().getEntity());
+        }
+
+        assertThat(partialEntities).extracting(Entity::getType).doesNotContain(EntityType.Node);
+        assertThat(partialEntities).allSatisfy(entity -> {
+            assertThat(entity.getTags()).isEmpty();
+            assertThat(entity.getVersion()).isEqualTo(-1);
+        });
+        List<Way> partialWays = newArrayList();
+        partialEntities.stream().filter(entity -> entity instanceof Way).forEach(entity -> partialWays.add((Way) entity));
+        assertThat(partialWays.stream().map(PbfIteratorTest::nodeIds).collect(toList())).isEqualTo(fullWays.stream().map(PbfIteratorTest::nodeIds).collect(toList()));
+    }
+
+    private static List<Long> nodeIds(Way way) {
+        return way.getWayNodes().stream().map(WayNode::getNodeId).collect(toList());
+    }
+
+    private static List<String> entities(PbfIterator iterator) {
+        List<String> entities = newArrayList();
+        while (iterator.hasNext()) {
+            Entity entity = iterator.next().getEntity();
+            entities.add(entity.getType() + "/" + entity.getId());
+        }
+        return entities;
+    }
 }
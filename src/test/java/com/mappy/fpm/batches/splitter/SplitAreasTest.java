@@ -0,0 +1,58 @@
+package com.mappy.fpm.batches.splitter;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.WKTReader;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SplitAreasTest {
+    private final SplitAreas areas = SplitAreas.shared();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void should_find_areas_as_a_tree_of_their_envelopes() throws Exception {
+        STRtree tree = new STRtree();
+        WKTReader reader = new WKTReader();
+        List<String> lines = IOUtils.readLines(getClass().getResourceAsStream("/split.csv"), UTF_8);
+        for (int area = 0; area < lines.size(); area++) {
+            tree.insert(reader.read(lines.get(area)).getEnvelopeInternal(), area);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            // Europe holds most of the small areas.
+            double x = i % 2 == 0 ? -180 + 360 * random.nextDouble() : -10 + 40 * random.nextDouble();
+            double y = i % 2 == 0 ? -90 + 180 * random.nextDouble() : 35 + 30 * random.nextDouble();
+            assertThat(areas.area(x, y)).isEqualTo(tree.query(new Envelope(x, x, y, y)).get(0));
+
+            Envelope envelope = new Envelope(x, x + random.nextDouble(), y, y + random.nextDouble() / 2);
+            IntArrayList found = new IntArrayList();
+            areas.areas(envelope, found);
+            List<Integer> expected = tree.query(envelope);
+            assertThat((List<Integer>) found).containsOnlyElementsOf(expected).hasSameSizeAs(expected);
+        }
+    }
+
+    @Test
+    public void should_put_points_on_a_border_in_the_area_at_their_north_east() {
+        assertThat(SplitAreas.name(areas.area(0.0, -50.0))).isEqualTo("2");
+        assertThat(areas.area(180.0, 0.0)).isEqualTo(-1);
+    }
+
+    @Test
+    public void should_include_areas_an_envelope_touches() {
+        IntArrayList found = new IntArrayList();
+        areas.areas(new Envelope(-10, 0.0, -60, -50), found);
+
+        assertThat(found.stream().map(SplitAreas::name).collect(toList())).containsOnly("1", "2");
+    }
+}
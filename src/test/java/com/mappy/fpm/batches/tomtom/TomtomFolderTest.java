@@ -2,6 +2,7 @@ package com.mappy.fpm.batches.tomtom;
 
 import org.junit.Test;
 
+import java.io.File;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -43,4 +44,17 @@ public class TomtomFolderTest {
 
         assertThat(smFiles).isEqualTo("src/test/resources/tomtom/name/andorra___________lxnm.dbf");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_return_all_files_read_by_a_zone() {
+        TomtomFolder tomtomFolder = new TomtomFolder("src/test/resources/generateFullPbf/Andorre/", "and");
+
+        List<File> zoneFiles = tomtomFolder.getZoneFiles();
+
+        assertThat(zoneFiles).contains(
+                new File("src/test/resources/generateFullPbf/Andorre/and______________a0.shp"),
+                new File("src/test/resources/generateFullPbf/Andorre/andand___________sm.shp"),
+                new File("src/test/resources/generateFullPbf/Andorre/andand___________sm.dbf"));
+        assertThat(zoneFiles).doesNotContain(new File("src/test/resources/generateFullPbf/Andorre/andand___________nw.shp"));
+    }
+}
@@ -0,0 +1,91 @@
+package com.mappy.fpm.batches.utils;
+
+import com.google.common.collect.ImmutableMap;
+import com.mappy.fpm.batches.merge.pbf.OsmMerger;
+import com.mappy.fpm.batches.merge.pbf.PbfIterator;
+import com.mappy.fpm.batches.utils.OsmosisSerializerTest.MemorySink;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.*;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Date;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CombiningSinkTest {
+    private static final GeometryFactory gf = new GeometryFactory();
+    private static final Date timestamp = new Date();
+
+    @Test
+    public void should_keep_the_last_entity_with_its_tags_first() {
+        MemorySink memory = new MemorySink();
+        CombiningSink sink = new CombiningSink(memory);
+
+        sink.process(new NodeContainer(node(1, new Tag("name", "first"))));
+        sink.process(new NodeContainer(node(1, new Tag("name", "second"))));
+        sink.process(new NodeContainer(node(2, new Tag("name", "other"))));
+        sink.process(new WayContainer(new Way(new CommonEntityData(2, 1, timestamp, OsmUser.NONE, 1L), emptyList())));
+        sink.complete();
+
+        assertThat(memory.getEntities()).extracting(entity -> entity.getType() + "/" + entity.getId() + "/" + newArrayList(entity.getTags())).containsExactly(
+                "Node/1/[Tag('name'='second'), Tag('name'='first')]",
+                "Node/2/[Tag('name'='other')]",
+                "Way/2/[]");
+    }
+
+    @Test
+    public void should_write_shapefiles_sharing_a_sink_as_merging_their_files() throws Exception {
+        new File("target/tests").mkdirs();
+        write(new BoundComputerAndSorterSink(new PbfSink(new FileOutputStream("target/tests/roads.osm.pbf"), false), SortSettings.DEFAULT), 0);
+        write(new BoundComputerAndSorterSink(new PbfSink(new FileOutputStream("target/tests/pois.osm.pbf"), false), SortSettings.DEFAULT), 1);
+        new OsmMerger().merge(newArrayList("target/tests/roads.osm.pbf", "target/tests/pois.osm.pbf"), "target/tests/merged.osm.pbf");
+
+        BoundComputerAndSorterSink zone = new BoundComputerAndSorterSink(new PbfSink(new FileOutputStream("target/tests/shared.osm.pbf"), true), SortSettings.DEFAULT, true);
+        SharedSink shared = new SharedSink(zone);
+        write(shared, 0);
+        write(shared, 1);
+        zone.complete();
+        zone.release();
+
+        assertThat(entities("target/tests/shared.osm.pbf")).isEqualTo(entities("target/tests/merged.osm.pbf"));
+    }
+
+    /**
+     * Roads and pois share points, as shapefiles of a zone do.
+     */
+    private static void write(Sink sink, int shapefile) {
+        OsmosisSerializer serializer = new OsmosisSerializer(sink, "Tomtom", timestamp);
+        if (shapefile == 0) {
+            serializer.write(gf.createLineString(new Coordinate[]{new Coordinate(2.0, 48.0), new Coordinate(2.1, 48.0), new Coordinate(2.2, 48.1)}), ImmutableMap.of("highway", "primary"));
+            serializer.write(gf.createLineString(new Coordinate[]{new Coordinate(2.1, 48.0), new Coordinate(2.1, 48.2)}), ImmutableMap.of("highway", "secondary"));
+        }
+        else {
+            serializer.write(gf.createPoint(new Coordinate(2.1, 48.0)), ImmutableMap.of("amenity", "fuel"));
+            serializer.write(gf.createPoint(new Coordinate(2.5, 48.5)), ImmutableMap.of("amenity", "parking"));
+        }
+        serializer.close();
+    }
+
+    private static List<String> entities(String pbfFile) {
+        List<String> entities = newArrayList();
+        PbfIterator iterator = new PbfIterator(pbfFile);
+        while (iterator.hasNext()) {
+            Entity entity = iterator.next().getEntity();
+            entities.add(entity.getType() + "/" + entity.getId() + "/" + newArrayList(entity.getTags()));
+        }
+        return entities;
+    }
+
+    private static Node node(long id, Tag tag) {
+        return new Node(new CommonEntityData(id, 1, timestamp, OsmUser.NONE, 1L, newArrayList(tag)), 48.0, 2.0);
+    }
+}
@@ -0,0 +1,72 @@
+package com.mappy.fpm.batches.utils;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.*;
+import org.openstreetmap.osmosis.core.sort.v0_6.EntityByTypeThenIdComparator;
+import org.openstreetmap.osmosis.core.sort.v0_6.EntityContainerComparator;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EntityRadixSortTest {
+
+    @Test
+    public void should_sort_like_type_then_id_comparator() {
+        Random random = new Random(42);
+        List<EntityContainer> entities = newArrayList();
+        for (int i = 0; i < 10_000; i++) {
+            entities.add(entity(random.nextInt(3), randomId(random)));
+        }
+        List<EntityContainer> expected = newArrayList(entities);
+        expected.sort(new EntityContainerComparator(new EntityByTypeThenIdComparator()));
+
+        EntityRadixSort.sort(entities);
+
+        assertThat(entities).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void should_keep_order_of_equal_entities() {
+        EntityContainer first = entity(1, 12);
+        EntityContainer second = entity(1, 12);
+        List<EntityContainer> entities = newArrayList(entity(1, 14), first, entity(0, 12), second, entity(1, -3));
+
+        EntityRadixSort.sort(entities);
+
+        assertThat(entities.get(2)).isSameAs(first);
+        assertThat(entities.get(3)).isSameAs(second);
+    }
+
+    private static long randomId(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                // The comparator subtracts ids, keep their difference from overflowing
+                return random.nextLong() >> 2;
+            case 1:
+                return 1_234_567_890_000L + random.nextInt(1000);
+            default:
+                return random.nextInt(20) - 10;
+        }
+    }
+
+    private static EntityContainer entity(int type, long id) {
+        CommonEntityData data = new CommonEntityData(id, 1, new Date(0), OsmUser.NONE, 1L);
+        switch (type) {
+            case 0:
+                return new NodeContainer(new Node(data, 48.0, 2.0));
+            case 1:
+                return new WayContainer(new Way(data, emptyList()));
+            default:
+                return new RelationContainer(new Relation(data, emptyList()));
+        }
+    }
+}
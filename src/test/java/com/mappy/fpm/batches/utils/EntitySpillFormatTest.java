@@ -0,0 +1,82 @@
+package com.mappy.fpm.batches.utils;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EntitySpillFormatTest {
+    private static final Date DATE = new Date(1500000000000L);
+    private static final OsmUser USER = new OsmUser(1, "Tomtom");
+
+    private final EntitySpillFormat format = new EntitySpillFormat();
+
+    @Test
+    public void should_read_back_written_entities() throws IOException {
+        List<Entity> entities = newArrayList(
+                new Node(data(12L, new Tag("place", "city"), new Tag("name", "Paris")), 48.8566, 2.3522),
+                new Node(data(14L), 0.1 + 0.2, -1.0 / 3),
+                new Node(new CommonEntityData(15L, 2, (Date) null, OsmUser.NONE, 0L), -45.0, 170.0),
+                new Way(data(20L, new Tag("highway", "primary")), newArrayList(new WayNode(14L), new WayNode(12L), new WayNode(15L))),
+                new Relation(data(30L, new Tag("type", "multipolygon")), newArrayList(new RelationMember(20L, EntityType.Way, "outer"), new RelationMember(12L, EntityType.Node, ""))));
+
+        assertThat(readBack(entities.stream().map(EntitySpillFormatTest::container).collect(toList()))).isEqualTo(entities);
+    }
+
+    @Test
+    public void should_read_back_several_blocks_with_long_strings() throws IOException {
+        List<Entity> entities = newArrayList();
+        for (int i = 0; i < 10_000; i++) {
+            entities.add(new Node(data(i * 7L, new Tag("name", i % 1000 == 0 ? Strings.repeat("é", 70_000) : "n" + (i % 10))), 48 + i / 1e5, 2 - i / 1e5));
+        }
+
+        assertThat(readBack(entities.stream().map(EntitySpillFormatTest::container).collect(toList()))).isEqualTo(entities);
+    }
+
+    private List<Entity> readBack(List<EntityContainer> containers) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            SpillFormat.Writer<EntityContainer> writer = format.newWriter(output);
+            for (EntityContainer container : containers) {
+                writer.write(container);
+            }
+            writer.finish();
+        }
+
+        SpillFormat.Reader<EntityContainer> reader = format.newReader(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        List<Entity> entities = newArrayList();
+        for (int i = 0; i < containers.size(); i++) {
+            entities.add(reader.read().getEntity());
+        }
+        return entities;
+    }
+
+    private static CommonEntityData data(long id, Tag... tags) {
+        return new CommonEntityData(id, 1, DATE, USER, 1L, newArrayList(tags));
+    }
+
+    private static EntityContainer container(Entity entity) {
+        if (entity instanceof Node) {
+            return new NodeContainer((Node) entity);
+        }
+        if (entity instanceof Way) {
+            return new WayContainer((Way) entity);
+        }
+        return new RelationContainer((Relation) entity);
+    }
+}
@@ -0,0 +1,211 @@
+package com.mappy.fpm.batches.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.sort.v0_6.EntityByTypeThenIdComparator;
+import org.openstreetmap.osmosis.core.sort.v0_6.EntityContainerComparator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.Collections.singletonList;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FileBasedSortTest {
+    private static final File SPILL_DIRECTORY = new File("target/tests/spill");
+
+    @Before
+    public void setup() {
+        deleteQuietly(SPILL_DIRECTORY);
+    }
+
+    @Test
+    public void should_sort_in_memory_when_values_fit_in_budget() {
+        FileBasedSort<EntityContainer> sort = sorter(Long.MAX_VALUE);
+
+        List<Long> ids = addRandomNodes(sort, 1000);
+
+        assertThat(SPILL_DIRECTORY.list()).isNullOrEmpty();
+        assertThat(sortedIds(sort)).isEqualTo(ids);
+    }
+
+    @Test
+    public void should_spill_sorted_runs_beyond_budget() {
+        FileBasedSort<EntityContainer> sort = sorter(100 * NoCompressionEntitySorter.estimatedSize(node(0)));
+
+        List<Long> ids = addRandomNodes(sort, 1050);
+
+        assertThat(sortedIds(sort)).isEqualTo(ids);
+        assertThat(SPILL_DIRECTORY.list()).hasSize(21);
+
+        sort.release();
+        assertThat(SPILL_DIRECTORY.list()).isEmpty();
+    }
+
+    @Test
+    public void should_merge_runs_beyond_max_fan_in() {
+        FileBasedSort<EntityContainer> sort = sorter(100 * NoCompressionEntitySorter.estimatedSize(node(0)), 4);
+
+        List<Long> ids = addRandomNodes(sort, 1050);
+
+        assertThat(sortedIds(sort)).isEqualTo(ids);
+        assertThat(SPILL_DIRECTORY.list()).hasSize(3);
+
+        sort.release();
+        assertThat(SPILL_DIRECTORY.list()).isEmpty();
+    }
+
+    @Test
+    public void should_keep_equal_values_in_insertion_order_when_merging_runs() {
+        FileBasedSort<EntityContainer> sort = sorter(100 * NoCompressionEntitySorter.estimatedSize(node(0)), 4);
+
+        // Nodes of the same id are told apart by their version, which is their insertion order.
+        List<Integer> versions = newArrayList();
+        for (int version = 0; version < 1050; version++) {
+            sort.add(node(version % 10, version));
+            versions.add(version);
+        }
+        versions.sort(Comparator.comparing((Integer version) -> version % 10));
+
+        List<Integer> sorted = newArrayList();
+        ReleasableIterator<EntityContainer> iterator = sort.iterate();
+        while (iterator.hasNext()) {
+            sorted.add(iterator.next().getEntity().getVersion());
+        }
+        iterator.release();
+
+        assertThat(sorted).isEqualTo(versions);
+        sort.release();
+    }
+
+    @Test
+    public void should_write_each_value_once_per_merge_level() {
+        AtomicInteger written = new AtomicInteger();
+        EntitySpillFormat entityFormat = new EntitySpillFormat();
+        SpillFormat<EntityContainer> counting = new SpillFormat<EntityContainer>() {
+            @Override
+            public Writer<EntityContainer> newWriter(DataOutputStream output) {
+                Writer<EntityContainer> writer = entityFormat.newWriter(output);
+                return new Writer<EntityContainer>() {
+                    @Override
+                    public void write(EntityContainer value) throws IOException {
+                        written.incrementAndGet();
+                        writer.write(value);
+                    }
+
+                    @Override
+                    public void finish() throws IOException {
+                        writer.finish();
+                    }
+                };
+            }
+
+            @Override
+            public Reader<EntityContainer> newReader(DataInputStream input) {
+                return entityFormat.newReader(input);
+            }
+        };
+        FileBasedSort<EntityContainer> sort = new FileBasedSort<>(
+                counting,
+                new EntityContainerComparator(new EntityByTypeThenIdComparator()),
+                NoCompressionEntitySorter::estimatedSize,
+                new SortSettings(100 * NoCompressionEntitySorter.estimatedSize(node(0)), singletonList(SPILL_DIRECTORY), 4));
+
+        // 256 runs of 50 values: spilled once, then merged into 64, 16, 4 and 3 runs.
+        List<Long> ids = addRandomNodes(sort, 12_810);
+
+        assertThat(sortedIds(sort)).isEqualTo(ids);
+        assertThat(written.get()).isLessThanOrEqualTo(5 * 12_800);
+        sort.release();
+    }
+
+    @Test
+    public void should_report_background_spill_failure_and_release_runs() {
+        AtomicInteger spills = new AtomicInteger();
+        EntitySpillFormat entityFormat = new EntitySpillFormat();
+        SpillFormat<EntityContainer> failingOnSecondRun = new SpillFormat<EntityContainer>() {
+            @Override
+            public Writer<EntityContainer> newWriter(DataOutputStream output) {
+                if (spills.incrementAndGet() == 2) {
+                    return value -> {
+                        throw new IOException("disk full");
+                    };
+                }
+                return entityFormat.newWriter(output);
+            }
+
+            @Override
+            public Reader<EntityContainer> newReader(DataInputStream input) {
+                return entityFormat.newReader(input);
+            }
+        };
+        FileBasedSort<EntityContainer> sort = new FileBasedSort<>(
+                failingOnSecondRun,
+                new EntityContainerComparator(new EntityByTypeThenIdComparator()),
+                NoCompressionEntitySorter::estimatedSize,
+                new SortSettings(100 * NoCompressionEntitySorter.estimatedSize(node(0)), singletonList(SPILL_DIRECTORY), 64));
+
+        assertThatThrownBy(() -> addRandomNodes(sort, 1050)).hasRootCauseInstanceOf(IOException.class);
+
+        sort.release();
+        assertThat(SPILL_DIRECTORY.list()).isEmpty();
+    }
+
+    private static FileBasedSort<EntityContainer> sorter(long memoryBudget) {
+        return sorter(memoryBudget, 64);
+    }
+
+    private static FileBasedSort<EntityContainer> sorter(long memoryBudget, int maxFanIn) {
+        return new FileBasedSort<>(
+                new EntitySpillFormat(),
+                new EntityContainerComparator(new EntityByTypeThenIdComparator()),
+                NoCompressionEntitySorter::estimatedSize,
+                new SortSettings(memoryBudget, singletonList(SPILL_DIRECTORY), maxFanIn));
+    }
+
+    private static List<Long> addRandomNodes(FileBasedSort<EntityContainer> sort, int count) {
+        Random random = new Random(42);
+        List<Long> ids = newArrayList();
+        for (int i = 0; i < count; i++) {
+            long id = random.nextInt(1_000_000);
+            sort.add(node(id));
+            ids.add(id);
+        }
+        ids.sort(Long::compare);
+        return ids;
+    }
+
+    private static List<Long> sortedIds(FileBasedSort<EntityContainer> sort) {
+        List<Long> ids = newArrayList();
+        ReleasableIterator<EntityContainer> iterator = sort.iterate();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getEntity().getId());
+        }
+        iterator.release();
+        return ids;
+    }
+
+    private static NodeContainer node(long id) {
+        return node(id, 1);
+    }
+
+    private static NodeContainer node(long id, int version) {
+        return new NodeContainer(new Node(new CommonEntityData(id, version, new Date(0), new OsmUser(1, "user"), 1L), 48.0, 2.0));
+    }
+}
@@ -0,0 +1,76 @@
+package com.mappy.fpm.batches.utils;
+
+import com.github.davidmoten.geo.GeoHash;
+import com.github.davidmoten.geo.LatLong;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.mappy.fpm.batches.utils.Geohash.*;
+
+/**
+ * Compares the geohash codec with the String based implementation it replaced.
+ * Run with the test classpath: java -cp ... com.mappy.fpm.batches.utils.GeohashBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeohashBenchmark {
+    private static final int COUNT = 1024;
+
+    private final double[] xs = new double[COUNT];
+    private final double[] ys = new double[COUNT];
+    private final long[] geohashes = new long[COUNT];
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < COUNT; i++) {
+            // Roughly Europe, where the TomTom zones are
+            xs[i] = random.nextDouble() * 40 - 10;
+            ys[i] = random.nextDouble() * 35 + 35;
+            geohashes[i] = encodeGeohash(i % 3, xs[i], ys[i]);
+        }
+    }
+
+    @Benchmark
+    public long encode() {
+        int i = next();
+        return encodeGeohash(1, xs[i], ys[i]);
+    }
+
+    @Benchmark
+    public long encodeWithString() {
+        int i = next();
+        return encodeString(GeoHash.encodeHash(ys[i], xs[i], 11)) | (long) 1 << 55;
+    }
+
+    @Benchmark
+    public double decode() {
+        int i = next();
+        return decodeLatitude(geohashes[i]) + decodeLongitude(geohashes[i]);
+    }
+
+    @Benchmark
+    public double decodeWithString() {
+        LatLong latLong = GeoHash.decodeHash(decodeString(withoutLayer(geohashes[next()])));
+        return latLong.getLat() + latLong.getLon();
+    }
+
+    private int next() {
+        index = (index + 1) & (COUNT - 1);
+        return index;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(GeohashBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -1,9 +1,12 @@
 package com.mappy.fpm.batches.utils;
 
+import com.github.davidmoten.geo.GeoHash;
 import com.github.davidmoten.geo.LatLong;
 
 import org.junit.Test;
 
+import java.util.Random;
+
 import static com.mappy.fpm.batches.utils.Geohash.*;
 import static org.assertj.core.api.Assertions.*;
 
@@ -44,4 +47,42 @@ public class GeohashTest {
         assertThat(decode.getLat()).isCloseTo(48.858844, within(0.000001));
         assertThat(decode.getLon()).isCloseTo(2.294351, within(0.000001));
     }
+
+    @Test
+    public void should_encode_like_string_geohash() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            assertThat(encodeGeohash(0, x, y)).isEqualTo(encodeString(GeoHash.encodeHash(y, x, 11)));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            // Bounds of geohash cells and their neighbours
+            double x = -180 + random.nextInt(1 << 28) * (360.0 / (1 << 28));
+            double y = -90 + random.nextInt(1 << 27) * (180.0 / (1 << 27));
+            for (double dx : new double[]{Math.nextDown(x), x, Math.nextUp(x)}) {
+                for (double dy : new double[]{Math.nextDown(y), y, Math.nextUp(y)}) {
+                    if (dy >= -90) {
+                        assertThat(encodeGeohash(0, dx, dy)).isEqualTo(encodeString(GeoHash.encodeHash(dy, dx, 11)));
+                    }
+                }
+            }
+        }
+        assertThat(encodeGeohash(0, 180.0, 90.0)).isEqualTo(encodeString(GeoHash.encodeHash(90.0, 180.0, 11)));
+        assertThat(encodeGeohash(0, -180.0, -90.0)).isEqualTo(encodeString(GeoHash.encodeHash(-90.0, -180.0, 11)));
+        assertThat(encodeGeohash(0, 190.0, 0.0)).isEqualTo(encodeString(GeoHash.encodeHash(0.0, 190.0, 11)));
+    }
+
+    @Test
+    public void should_decode_like_string_geohash() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            LatLong expected = GeoHash.decodeHash(GeoHash.encodeHash(y, x, 11));
+            long geohash = encodeGeohash(3, x, y);
+            assertThat(decodeLatitude(geohash)).isEqualTo(expected.getLat());
+            assertThat(decodeLongitude(geohash)).isEqualTo(expected.getLon());
+        }
+    }
 }
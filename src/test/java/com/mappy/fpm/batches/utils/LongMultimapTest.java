@@ -0,0 +1,43 @@
+package com.mappy.fpm.batches.utils;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LongMultimapTest {
+    private final LongMultimap multimap = new LongMultimap();
+
+    @Test
+    public void should_return_the_values_of_a_key_sorted_once() {
+        multimap.put(42L, 3);
+        multimap.put(-7L, 1);
+        multimap.put(42L, 1);
+        multimap.put(42L, 3);
+
+        assertThat(multimap.get(42L)).containsExactly(1, 3);
+        assertThat(multimap.get(-7L)).containsExactly(1);
+        assertThat(multimap.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void should_not_contain_missing_keys() {
+        multimap.put(1L, 2L);
+
+        assertThat(multimap.containsKey(1L)).isTrue();
+        assertThat(multimap.containsKey(0L)).isFalse();
+        assertThat(multimap.containsKey(2L)).isFalse();
+        assertThat(multimap.get(2L)).isEmpty();
+    }
+
+    @Test
+    public void should_add_pairs_after_lookups() {
+        for (long key = 0; key < 100_000; key++) {
+            multimap.put(key % 1000, key);
+        }
+        assertThat(multimap.get(999L)).hasSize(100);
+
+        multimap.put(999L, -1L);
+
+        assertThat(multimap.get(999L)).hasSize(101).startsWith(-1L, 999L);
+    }
+}
@@ -0,0 +1,95 @@
+package com.mappy.fpm.batches.utils;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.store.ReleasableAdaptorForIterator;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoserTreeMergingIteratorTest {
+
+    @Test
+    public void should_merge_any_number_of_sorted_sources() {
+        Random random = new Random(42);
+        for (int size = 0; size <= 9; size++) {
+            List<List<Integer>> sources = newArrayList();
+            List<Integer> expected = newArrayList();
+            for (int i = 0; i < size; i++) {
+                List<Integer> source = newArrayList();
+                for (int j = random.nextInt(50); j > 0; j--) {
+                    source.add(random.nextInt(100));
+                }
+                source.sort(Integer::compare);
+                sources.add(source);
+                expected.addAll(source);
+            }
+            expected.sort(Integer::compare);
+
+            assertThat(toList(new LoserTreeMergingIterator<>(iterators(sources), Integer::compare))).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void should_return_equal_values_in_source_order() {
+        List<List<String>> sources = asList(asList("a1", "b1"), asList("b2", "c2"), asList("a3", "b3"));
+
+        LoserTreeMergingIterator<String> merge = new LoserTreeMergingIterator<>(iterators(sources), Comparator.comparing(value -> value.charAt(0)));
+
+        assertThat(toList(merge)).containsExactly("a1", "a3", "b1", "b2", "b3", "c2");
+    }
+
+    @Test
+    public void should_combine_equal_values_of_different_sources() {
+        List<List<String>> sources = asList(asList("a1", "b1", "b1"), asList("b2", "c2"), asList("a3", "b3"));
+
+        LoserTreeMergingIterator<String> merge = new LoserTreeMergingIterator<>(iterators(sources), Comparator.comparing(value -> value.charAt(0)), (combined, value) -> combined + value.charAt(1));
+
+        assertThat(toList(merge)).containsExactly("a13", "b1", "b123", "c2");
+    }
+
+    @Test
+    public void should_release_exhausted_and_remaining_sources() {
+        AtomicInteger released = new AtomicInteger();
+        List<ReleasableIterator<Integer>> sources = newArrayList();
+        for (List<Integer> values : asList(asList(1, 2), asList(3, 4), Collections.<Integer>emptyList())) {
+            sources.add(new ReleasableAdaptorForIterator<Integer>(values.iterator()) {
+                @Override
+                public void release() {
+                    released.incrementAndGet();
+                }
+            });
+        }
+        LoserTreeMergingIterator<Integer> merge = new LoserTreeMergingIterator<>(sources, Integer::compare);
+
+        merge.next();
+        merge.next();
+        assertThat(released.get()).isEqualTo(2);
+
+        merge.release();
+        assertThat(released.get()).isEqualTo(3);
+    }
+
+    private static <T> List<ReleasableIterator<T>> iterators(List<List<T>> sources) {
+        List<ReleasableIterator<T>> iterators = newArrayList();
+        for (List<T> source : sources) {
+            iterators.add(new ReleasableAdaptorForIterator<>(source.iterator()));
+        }
+        return iterators;
+    }
+
+    private static <T> List<T> toList(LoserTreeMergingIterator<T> merge) {
+        List<T> values = newArrayList();
+        while (merge.hasNext()) {
+            values.add(merge.next());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,58 @@
+package com.mappy.fpm.batches.utils;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.pbf2.v0_6.impl.PbfRawBlob;
+import org.openstreetmap.osmosis.pbf2.v0_6.impl.PbfStreamSplitter;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappedPbfReaderTest {
+    private static final File PBF = new File("src/test/resources/merge/Luxembourg.osm.pbf");
+
+    @Test
+    public void should_read_same_blobs_as_stream_splitter() throws IOException {
+        assertThat(mapped(new MappedPbfReader(PBF))).isEqualTo(streamed());
+    }
+
+    @Test
+    public void should_map_file_window_by_window() throws IOException {
+        assertThat(mapped(new MappedPbfReader(PBF, 4096))).isEqualTo(streamed());
+    }
+
+    private static List<String> mapped(MappedPbfReader reader) {
+        List<String> entities = newArrayList();
+        while (reader.hasNext()) {
+            PbfBlob blob = reader.next();
+            entities.add(blob.getType());
+            describe(PbfBlobDecoder.processOsmPrimitives(blob), entities);
+        }
+        reader.release();
+        return entities;
+    }
+
+    private static List<String> streamed() throws IOException {
+        List<String> entities = newArrayList();
+        PbfStreamSplitter splitter = new PbfStreamSplitter(new DataInputStream(new FileInputStream(PBF)));
+        while (splitter.hasNext()) {
+            PbfRawBlob blob = splitter.next();
+            entities.add(blob.getType());
+            describe(PbfBlobDecoder.processOsmPrimitives(blob), entities);
+        }
+        splitter.release();
+        return entities;
+    }
+
+    private static void describe(List<EntityContainer> decoded, List<String> entities) {
+        for (EntityContainer container : decoded) {
+            entities.add(container.getEntity().getType() + "/" + container.getEntity().getId() + "/" + newArrayList(container.getEntity().getTags()));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.mappy.fpm.batches.utils;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OffHeapLongSetTest {
+
+    @Test
+    public void should_add_values_once() {
+        OffHeapLongSet set = new OffHeapLongSet(0);
+
+        assertThat(set.add(42L)).isTrue();
+        assertThat(set.add(42L)).isFalse();
+        assertThat(set.add(0L)).isTrue();
+        assertThat(set.add(0L)).isFalse();
+
+        assertThat(set.contains(42L)).isTrue();
+        assertThat(set.contains(0L)).isTrue();
+        assertThat(set.contains(43L)).isFalse();
+        assertThat(set.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_refuse_more_ids_than_a_direct_buffer_holds() {
+        assertThatThrownBy(() -> new OffHeapLongSet(150_000_000))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Too many ids");
+    }
+
+    @Test
+    public void should_grow_past_expected_size() {
+        OffHeapLongSet set = new OffHeapLongSet(16);
+        LongOpenHashSet expected = new LongOpenHashSet();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextInt(50_000) - 25_000L;
+            assertThat(set.add(value)).isEqualTo(expected.add(value));
+        }
+
+        assertThat(set.size()).isEqualTo(expected.size());
+        assertThat(new LongOpenHashSet(set.iterator())).isEqualTo(expected);
+        for (long value = -25_000; value < 25_000; value++) {
+            assertThat(set.contains(value)).isEqualTo(expected.contains(value));
+        }
+    }
+
+    @Test
+    public void should_refuse_to_be_used_once_released() {
+        OffHeapLongSet set = new OffHeapLongSet(16);
+        set.add(42L);
+
+        set.release();
+        set.release();
+
+        assertThat(set.size()).isZero();
+        assertThatThrownBy(() -> set.contains(42L))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("released");
+    }
+}
@@ -1,5 +1,6 @@
 package com.mappy.fpm.batches.utils;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.vividsolutions.jts.geom.*;
@@ -19,6 +20,7 @@ import java.util.stream.Collectors;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.openstreetmap.osmosis.core.domain.v0_6.EntityType.Way;
 
 public class OsmosisSerializerTest {
@@ -37,6 +39,29 @@ public class OsmosisSerializerTest {
                 new Node(new CommonEntityData(1155588746470758L, 1, timestamp, new OsmUser(1, "user"), 1L, newArrayList(new Tag("place", "town"))), 42.1, 3.0));
     }
 
+    @Test
+    public void should_report_written_entities_to_its_registry_once_closed() {
+        MetricRegistry registry = new MetricRegistry();
+        OsmosisSerializer reporting = new OsmosisSerializer(sink, "user", timestamp, IdTrackers.HEAP, 0, registry);
+
+        reporting.write(linestring(new Coordinate[]{new Coordinate(0.0, 0.0), new Coordinate(1.0, 0.0)}), ImmutableMap.of("highway", "primary"));
+        assertThat(registry.meter("serializer.nodes").getCount()).isZero();
+        reporting.close();
+
+        assertThat(registry.meter("serializer.nodes").getCount()).isEqualTo(2);
+        assertThat(registry.meter("serializer.ways").getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_release_off_heap_trackers_once_closed() {
+        OsmosisSerializer offHeap = new OsmosisSerializer(sink, "user", timestamp, IdTrackers.OFF_HEAP, 100, new MetricRegistry());
+        offHeap.write(point(42.0), ImmutableMap.of("place", "city"));
+
+        offHeap.close();
+
+        assertThatThrownBy(() -> offHeap.containPoint(point(42.0))).hasMessageContaining("released");
+    }
+
     @Test
     public void should_refuse_to_forget_a_point() {
         serializer.writePoint(point(42.0), ImmutableMap.of("place", "city"));
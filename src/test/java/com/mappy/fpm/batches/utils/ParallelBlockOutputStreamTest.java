@@ -0,0 +1,77 @@
+package com.mappy.fpm.batches.utils;
+
+import com.mappy.fpm.batches.merge.pbf.PbfIterator;
+import crosby.binary.osmosis.OsmosisSerializer;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParallelBlockOutputStreamTest {
+    private static final String PBF = "src/test/resources/merge/Luxembourg.osm.pbf";
+
+    @Test
+    public void should_write_same_bytes_as_block_output_stream() {
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+
+        write(new BlockOutputStream(sequential));
+        write(new ParallelBlockOutputStream(parallel, Deflater.DEFAULT_COMPRESSION, 3));
+
+        assertThat(parallel.toByteArray()).isEqualTo(sequential.toByteArray());
+    }
+
+    @Test
+    public void should_write_same_bytes_whatever_the_pending_blocks_at_a_given_level() {
+        ByteArrayOutputStream one = new ByteArrayOutputStream();
+        ByteArrayOutputStream many = new ByteArrayOutputStream();
+
+        write(new ParallelBlockOutputStream(one, 1, 1));
+        write(new ParallelBlockOutputStream(many, 1, 16));
+
+        assertThat(many.toByteArray()).isEqualTo(one.toByteArray());
+    }
+
+    @Test
+    public void should_write_readable_blocks_at_any_level() throws IOException {
+        new File("target/tests").mkdirs();
+        try (FileOutputStream output = new FileOutputStream("target/tests/level9.osm.pbf")) {
+            write(new ParallelBlockOutputStream(output, 9));
+        }
+
+        assertThat(entities("target/tests/level9.osm.pbf")).isEqualTo(entities(PBF));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_unknown_levels() {
+        new ParallelBlockOutputStream(new ByteArrayOutputStream(), 10);
+    }
+
+    private static void write(BlockOutputStream output) {
+        OsmosisSerializer serializer = new OsmosisSerializer(output);
+        PbfIterator iterator = new PbfIterator(PBF);
+        while (iterator.hasNext()) {
+            serializer.process(iterator.next());
+        }
+        serializer.complete();
+    }
+
+    private static List<String> entities(String file) {
+        List<String> entities = newArrayList();
+        PbfIterator iterator = new PbfIterator(file);
+        while (iterator.hasNext()) {
+            Entity entity = iterator.next().getEntity();
+            entities.add(entity.getType() + "/" + entity.getId() + "/" + newArrayList(entity.getTags()));
+        }
+        return entities;
+    }
+}
@@ -0,0 +1,99 @@
+package com.mappy.fpm.batches.utils;
+
+import com.mappy.fpm.batches.merge.pbf.PbfIterator;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.Date;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PbfWriterTest {
+    private static final String PBF = "src/test/resources/merge/Luxembourg.osm.pbf";
+
+    @Test
+    public void should_write_entities_as_read() throws FileNotFoundException {
+        write("target/tests/written.osm.pbf", true);
+
+        assertThat(entities("target/tests/written.osm.pbf", true)).isEqualTo(entities(PBF, true));
+    }
+
+    @Test
+    public void should_omit_metadata() throws FileNotFoundException {
+        write("target/tests/withoutMetadata.osm.pbf", false);
+
+        assertThat(entities("target/tests/withoutMetadata.osm.pbf", false)).isEqualTo(entities(PBF, false));
+        assertThat(new PbfIterator("target/tests/withoutMetadata.osm.pbf")).allSatisfy(container -> assertThat(container.getEntity().getVersion()).isEqualTo(-1));
+        assertThat(new File("target/tests/withoutMetadata.osm.pbf").length()).isLessThan(new File(PBF).length());
+    }
+
+    @Test
+    public void should_keep_nodes_without_metadata_apart_from_nodes_with() throws FileNotFoundException {
+        String file = "target/tests/mixedMetadata.osm.pbf";
+        new File(file).getParentFile().mkdirs();
+        PbfWriter writer = new PbfWriter(new BlockOutputStream(new FileOutputStream(file)));
+        writer.process(new NodeContainer(new Node(new CommonEntityData(1, 3, new Date(1_500_000_000_000L), new OsmUser(12, "user"), 7), 0, 0)));
+        writer.process(new NodeContainer(new Node(new CommonEntityData(2, -1, new Date(0), OsmUser.NONE, -1), 0, 0)));
+        writer.process(new NodeContainer(new Node(new CommonEntityData(3, 4, new Date(1_500_000_000_000L), new OsmUser(12, "user"), 8), 0, 0)));
+        writer.complete();
+        writer.release();
+
+        assertThat(entities(file, true)).containsExactly(
+                "Node/1/[]/3/1500000000000/12/user/7/0.0/0.0",
+                "Node/2/[]/-1/0/-1//-1/0.0/0.0",
+                "Node/3/[]/4/1500000000000/12/user/8/0.0/0.0");
+    }
+
+    private static void write(String file, boolean metadata) throws FileNotFoundException {
+        new File(file).getParentFile().mkdirs();
+        PbfWriter writer = new PbfWriter(new BlockOutputStream(new FileOutputStream(file)), metadata);
+        PbfIterator iterator = new PbfIterator(PBF);
+        while (iterator.hasNext()) {
+            writer.process(iterator.next());
+        }
+        writer.complete();
+        writer.release();
+    }
+
+    private static List<String> entities(String file, boolean metadata) {
+        List<String> entities = newArrayList();
+        PbfIterator iterator = new PbfIterator(file);
+        while (iterator.hasNext()) {
+            Entity entity = iterator.next().getEntity();
+            String description = entity.getType() + "/" + entity.getId() + "/" + newArrayList(entity.getTags());
+            if (metadata) {
+                description += "/" + entity.getVersion() + "/" + entity.getTimestamp().getTime() + "/" + entity.getUser().getId() + "/" + entity.getUser().getName() + "/" + entity.getChangesetId();
+            }
+            if (entity instanceof Node) {
+                description += "/" + ((Node) entity).getLatitude() + "/" + ((Node) entity).getLongitude();
+            }
+            if (entity instanceof Way) {
+                description += "/" + ((Way) entity).getWayNodes().stream().map(WayNode::getNodeId).collect(toList());
+            }
+            if (entity instanceof Relation) {
+                description += "/" + ((Relation) entity).getMembers().stream().map(PbfWriterTest::describe).collect(toList());
+            }
+            entities.add(description);
+        }
+        return entities;
+    }
+
+    private static String describe(RelationMember member) {
+        return member.getMemberType() + ":" + member.getMemberId() + ":" + member.getMemberRole();
+    }
+}